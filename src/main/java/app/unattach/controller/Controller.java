@@ -18,9 +18,11 @@ public interface Controller {
   DefaultArtifactVersion getLatestVersion();
   String getOrCreateDownloadedLabelId();
   String getOrCreateRemovedLabelId();
-  LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings);
+  ProcessEmailsTask getProcessTask(List<Email> emails, ProcessSettings processSettings);
   List<Email> getSearchResults();
   GetEmailMetadataTask getSearchTask(String query) throws GmailServiceException;
+  GetEmailMetadataTask getSyncTask(String query) throws GmailServiceException;
+  String getInterruptedSearchQuery();
   void openFile(File file);
   void openQueryLanguagePage();
   void openUnattachHomepage();
@@ -2,8 +2,11 @@ package app.unattach.controller;
 
 import app.unattach.model.Config;
 import app.unattach.model.FileConfig;
-import app.unattach.model.attachmentstorage.UserStorage;
+import app.unattach.model.FileMetadataIndex;
+import app.unattach.model.attachmentstorage.ArchiveUserStorage;
+import app.unattach.model.attachmentstorage.DeduplicatingUserStorage;
 import app.unattach.model.attachmentstorage.FileUserStorage;
+import app.unattach.model.attachmentstorage.UserStorage;
 import app.unattach.model.service.GmailServiceManager;
 import app.unattach.model.service.LiveGmailServiceManager;
 import app.unattach.model.LiveModel;
@@ -14,10 +17,14 @@ public class ControllerFactory {
 
   public static synchronized Controller getDefaultController() {
     if (defaultController == null) {
-      UserStorage userStorage = new FileUserStorage();
-      GmailServiceManager gmailServiceManager = new LiveGmailServiceManager();
       Config config = new FileConfig();
-      Model model = new LiveModel(config, userStorage, gmailServiceManager);
+      UserStorage userStorage = config.getDeduplicateAttachments() ?
+          new DeduplicatingUserStorage() : new FileUserStorage();
+      if (config.getArchiveBackups()) {
+        userStorage = new ArchiveUserStorage(userStorage);
+      }
+      GmailServiceManager gmailServiceManager = new LiveGmailServiceManager();
+      Model model = new LiveModel(config, userStorage, gmailServiceManager, new FileMetadataIndex());
       defaultController = new DefaultController(model);
     }
     return defaultController;
@@ -87,8 +87,8 @@ public record DefaultController(Model model) implements Controller {
   }
 
   @Override
-  public LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings) {
-    return model.getProcessTask(email, processSettings);
+  public ProcessEmailsTask getProcessTask(List<Email> emails, ProcessSettings processSettings) {
+    return model.getProcessTask(emails, processSettings);
   }
 
   @Override
@@ -101,6 +101,16 @@ public record DefaultController(Model model) implements Controller {
     return model.getSearchTask(query);
   }
 
+  @Override
+  public GetEmailMetadataTask getSyncTask(String query) throws GmailServiceException {
+    return model.getSyncTask(query);
+  }
+
+  @Override
+  public String getInterruptedSearchQuery() {
+    return model.getInterruptedSearchQuery();
+  }
+
   @Override
   public void openUnattachHomepage() {
     openWebPage(Constants.HOMEPAGE);
@@ -8,12 +8,15 @@ import java.util.Properties;
 import java.util.Set;
 
 public class BaseConfig implements Config {
+  private static final String ARCHIVE_BACKUPS_PROPERTY = "archive_backups";
   private static final String DATE_FORMAT_PROPERTY = "date_format";
+  private static final String DEDUPLICATE_ATTACHMENTS_PROPERTY = "deduplicate_attachments";
   private static final String REMOVE_ORIGINAL_PROPERTY = "remove_original";
   private static final String DOWNLOADED_LABEL_ID_PROPERTY = "downloaded_label_id";
   private static final String EMAIL_SIZE_PROPERTY = "email_size";
   private static final String FILENAME_SCHEMA_PROPERTY = "filename_schema";
   private static final String LABEL_IDS_PROPERTY = "label_ids";
+  private static final String MEMORY_BUDGET_PERCENT_PROPERTY = "memory_budget_percent";
   private static final String PROCESS_EMBEDDED_PROPERTY = "process_embedded";
   private static final String REMOVED_LABEL_ID_PROPERTY = "removed_label_id";
   private static final String SEARCH_QUERY_PROPERTY = "search_query";
@@ -22,12 +25,15 @@ public class BaseConfig implements Config {
   private static final String TARGET_DIRECTORY_PROPERTY = "target_directory";
 
   private static final Set<String> PROPERTY_NAMES = Set.of(
+      ARCHIVE_BACKUPS_PROPERTY,
       DATE_FORMAT_PROPERTY,
+      DEDUPLICATE_ATTACHMENTS_PROPERTY,
       REMOVE_ORIGINAL_PROPERTY,
       DOWNLOADED_LABEL_ID_PROPERTY,
       EMAIL_SIZE_PROPERTY,
       FILENAME_SCHEMA_PROPERTY,
       LABEL_IDS_PROPERTY,
+      MEMORY_BUDGET_PERCENT_PROPERTY,
       PROCESS_EMBEDDED_PROPERTY,
       REMOVED_LABEL_ID_PROPERTY,
       SEARCH_QUERY_PROPERTY,
@@ -52,6 +58,16 @@ public class BaseConfig implements Config {
     return PROPERTY_NAMES;
   }
 
+  @Override
+  public boolean getArchiveBackups() {
+    return Boolean.parseBoolean(config.getProperty(ARCHIVE_BACKUPS_PROPERTY, "false"));
+  }
+
+  @Override
+  public boolean getDeduplicateAttachments() {
+    return Boolean.parseBoolean(config.getProperty(DEDUPLICATE_ATTACHMENTS_PROPERTY, "false"));
+  }
+
   @Override
   public int getEmailSize() {
     return Integer.parseInt(config.getProperty(EMAIL_SIZE_PROPERTY, "5"));
@@ -72,6 +88,11 @@ public class BaseConfig implements Config {
     return config.getProperty(FILENAME_SCHEMA_PROPERTY, FilenameFactory.DEFAULT_SCHEMA);
   }
 
+  @Override
+  public int getMemoryBudgetPercent() {
+    return Integer.parseInt(config.getProperty(MEMORY_BUDGET_PERCENT_PROPERTY, "50"));
+  }
+
   @Override
   public List<String> getLabelIds() {
     return Arrays.asList(config.getProperty(LABEL_IDS_PROPERTY, "").split(","));
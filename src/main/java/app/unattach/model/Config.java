@@ -5,10 +5,13 @@ import java.util.Set;
 
 public interface Config {
   Set<String> getPropertyNames();
+  boolean getArchiveBackups();
+  boolean getDeduplicateAttachments();
   int getEmailSize();
   String getDateFormat();
   boolean getRemoveOriginal();
   String getFilenameSchema();
+  int getMemoryBudgetPercent();
   List<String> getLabelIds();
   String getDownloadedLabelId();
   boolean getProcessEmbedded();
@@ -1,8 +1,14 @@
 package app.unattach.model;
 
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
+/**
+ * The formats of the dates shown in the results. Formatting is thread-safe, so that tables and processing can share
+ * the formats.
+ */
 public enum DateFormat {
   ISO_8601_DATE("yyyy-MM-dd"),
   ISO_8601_DATE_TIME("yyyy-MM-dd'T'HH-mm-ss"),
@@ -13,11 +19,11 @@ public enum DateFormat {
   DATE_DEFAULT("EEE MMM dd HH:mm:ss z yyyy");
 
   private final String pattern;
-  private final SimpleDateFormat simpleDateFormat;
+  private final DateTimeFormatter formatter;
 
   DateFormat(String pattern) {
     this.pattern = pattern;
-    simpleDateFormat = new SimpleDateFormat(pattern);
+    formatter = DateTimeFormatter.ofPattern(pattern).withZone(ZoneId.systemDefault());
   }
 
   public String getPattern() {
@@ -25,7 +31,11 @@ public enum DateFormat {
   }
 
   public String format(Date date) {
-    return simpleDateFormat.format(date);
+    return format(date.getTime());
+  }
+
+  public String format(long timestamp) {
+    return formatter.format(Instant.ofEpochMilli(timestamp));
   }
 
   public static DateFormat fromPattern(String pattern) {
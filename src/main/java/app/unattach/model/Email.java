@@ -5,37 +5,49 @@ import javafx.beans.Observable;
 import javafx.fxml.FXML;
 import org.apache.commons.lang3.StringUtils;
 
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
 
+/**
+ * A search result. Searches can find hundreds of thousands of emails, so each is kept lean: label combinations and
+ * senders are shared between emails, and display strings are only made when a row is shown.
+ */
 public class Email implements Observable {
+  private static final DateTimeFormatter TIME_FORMATTER =
+      DateTimeFormatter.ofPattern("HH-mm-ss").withZone(ZoneId.systemDefault());
+
+  private record FormattedDate(DateFormat dateFormat, String text) {}
+
   private String gmailId;
-  private final SortedSet<GmailLabel> labels;
+  private final LabelSet labels;
   private final String from;
   private final String to;
   private final String subject;
   private final long timestamp;
-  private final Date date;
   private final int sizeInBytes;
   private final List<String> attachments;
+  private String attachmentsDelimited;
+  // The date in the last format asked for; results are shown in one format at a time.
+  private FormattedDate formattedDate;
   private EmailStatus status;
   private String processLog;
 
-  private final List<InvalidationListener> listeners = new ArrayList<>();
+  // Results tables add one listener to each email, so the list is only made for a second listener.
+  private InvalidationListener listener;
+  private List<InvalidationListener> moreListeners;
 
   public Email(String gmailId, List<GmailLabel> labels, String from, String to, String subject, long timestamp,
                int sizeInBytes, List<String> attachments) {
     this.gmailId = gmailId;
-    this.labels = Collections.unmodifiableSortedSet(labels == null ?
-        Collections.emptySortedSet() : new TreeSet<>(labels));
-    this.from = from;
+    this.labels = LabelSet.of(labels);
+    this.from = intern(from);
     this.to = to;
     this.subject = subject;
     this.timestamp = timestamp;
-    this.date = new Date(timestamp);
     this.sizeInBytes = sizeInBytes;
-    this.attachments = attachments;
+    this.attachments = attachments == null ? List.of() : attachments;
     status = EmailStatus.NOT_SELECTED;
     processLog = "";
   }
@@ -49,26 +61,49 @@ public class Email implements Observable {
     this.gmailId = gmailId;
   }
 
+  /**
+   * Shares equal strings, such as the addresses of frequent senders, between emails. Only worth it for strings that
+   * repeat, unlike e.g. recipient lists.
+   */
+  static String intern(String string) {
+    return string == null ? null : string.intern();
+  }
+
   @FXML
   public String getLabelNamesDelimited() {
-    return labels.stream().map(GmailLabel::name).collect(Collectors.joining(", "));
+    return labels.getNamesDelimited();
   }
 
   @FXML
   public Date getDate() {
-    return date;
+    return new Date(timestamp);
+  }
+
+  /**
+   * @return The labels, sorted by name.
+   */
+  public List<GmailLabel> getLabels() {
+    return labels.labels();
   }
 
-  public SortedSet<GmailLabel> getLabels() {
-    return labels;
+  /**
+   * Formats the date, keeping the result for as long as the same format is asked for.
+   */
+  public String getDateString(DateFormat dateFormat) {
+    FormattedDate formattedDate = this.formattedDate;
+    if (formattedDate == null || formattedDate.dateFormat() != dateFormat) {
+      formattedDate = new FormattedDate(dateFormat, dateFormat.format(timestamp));
+      this.formattedDate = formattedDate;
+    }
+    return formattedDate.text();
   }
 
   String getDateIso8601() {
-    return new SimpleDateFormat("yyyy-MM-dd").format(getDate());
+    return getDateString(DateFormat.ISO_8601_DATE);
   }
 
   String getTimeString() {
-    return new SimpleDateFormat("HH-mm-ss").format(getDate());
+    return TIME_FORMATTER.format(Instant.ofEpochMilli(timestamp));
   }
 
   @FXML
@@ -116,7 +151,12 @@ public class Email implements Observable {
 
   @FXML
   public String getAttachments() {
-    return String.join(", ", attachments);
+    String attachmentsDelimited = this.attachmentsDelimited;
+    if (attachmentsDelimited == null) {
+      attachmentsDelimited = String.join(", ", attachments);
+      this.attachmentsDelimited = attachmentsDelimited;
+    }
+    return attachmentsDelimited;
   }
 
   @FXML
@@ -132,12 +172,17 @@ public class Email implements Observable {
   @FXML
   public void setStatus(EmailStatus status) {
     this.status = status;
-    for (InvalidationListener listener : listeners) {
+    if (listener != null) {
       listener.invalidated(this);
     }
+    if (moreListeners != null) {
+      for (InvalidationListener listener : moreListeners) {
+        listener.invalidated(this);
+      }
+    }
   }
 
-  long getTimestamp() {
+  public long getTimestamp() {
     return timestamp;
   }
 
@@ -154,12 +199,23 @@ public class Email implements Observable {
 
   @Override
   public void addListener(InvalidationListener listener) {
-    listeners.add(listener);
+    if (this.listener == null) {
+      this.listener = listener;
+    } else {
+      if (moreListeners == null) {
+        moreListeners = new ArrayList<>(1);
+      }
+      moreListeners.add(listener);
+    }
   }
 
   @Override
   public void removeListener(InvalidationListener listener) {
-    listeners.remove(listener);
+    if (listener.equals(this.listener)) {
+      this.listener = moreListeners == null || moreListeners.isEmpty() ? null : moreListeners.remove(0);
+    } else if (moreListeners != null) {
+      moreListeners.remove(listener);
+    }
   }
 
   @Override
@@ -170,7 +226,7 @@ public class Email implements Observable {
             ", from='" + from + '\'' +
             ", subject='" + subject + '\'' +
             ", timestamp=" + timestamp +
-            ", date=" + date +
+            ", date=" + getDate() +
             ", sizeInBytes=" + sizeInBytes +
             ", status=" + status +
             ", processLog='" + processLog + '\'' +
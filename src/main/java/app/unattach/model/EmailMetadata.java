@@ -0,0 +1,21 @@
+package app.unattach.model;
+
+import java.util.List;
+
+/**
+ * The metadata of an email shown in the search results, as fetched from Gmail.
+ */
+public record EmailMetadata(String gmailId, List<GmailLabel> labels, String from, String to, String subject,
+                            long timestamp, int sizeInBytes, List<String> attachmentNames) {
+  /**
+   * Shares labels and senders with other metadata, since the index can hold the metadata of a whole mailbox.
+   */
+  public EmailMetadata {
+    labels = LabelSet.of(labels).labels();
+    from = Email.intern(from);
+  }
+
+  public Email toEmail() {
+    return new Email(gmailId, labels, from, to, subject, timestamp, sizeInBytes, attachmentNames);
+  }
+}
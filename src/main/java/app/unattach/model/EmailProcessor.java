@@ -2,8 +2,7 @@ package app.unattach.model;
 
 import app.unattach.model.attachmentstorage.UserStorage;
 import app.unattach.utils.Logger;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
+import app.unattach.utils.MimeMessagePrettyPrinter;
 
 import javax.mail.*;
 import javax.mail.internet.MimeBodyPart;
@@ -11,7 +10,6 @@ import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimeUtility;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -19,38 +17,67 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 import static app.unattach.model.GmailLabel.NO_LABEL;
 
 public class EmailProcessor {
   private static final Logger logger = Logger.get();
+  // As per https://bugs.openjdk.java.net/browse/JDK-8195686, Java doesn't have direct support for iso-8859-8-i
+  // encoding; however, iso-8859-8 is equivalent, so we pre-emptively replace it.
+  private static final CheckedFunction<Part> FIX_CONTENT_TYPE = replaceContentType("iso-8859-8-i", "iso-8859-8", true);
+
+  public static record Attachment(Part part, String originalFilename, String normalizedFilename) {}
+
+  /**
+   * @param mimeMessage The email as it is now, or null if it was skipped without being parsed.
+   * @param originalStructure The MIME structure of the email as it was, for diagnostics.
+   * @param structure The MIME structure of the email as it is now, for diagnostics.
+   */
+  public static record Result(MimeMessage mimeMessage, List<Attachment> attachments, String originalStructure,
+                              String structure) {
+    public Set<String> getOriginalAttachmentNames() {
+      Set<String> originalAttachmentNames = new TreeSet<>();
+      attachments.forEach(attachment -> originalAttachmentNames.add(attachment.originalFilename()));
+      return originalAttachmentNames;
+    }
+  }
 
-  private final UserStorage userStorage;
   private final Email email;
   private MimeMessage mimeMessage;
   private final ProcessSettings processSettings;
   private final FilenameFactory filenameFactory;
+  // The filenames of this email's attachments, worked out when the first attachment is detected.
+  private FilenameFactory.EmailFilenames emailFilenames;
   private int fileCounter = 0;
   private final List<Part> detectedAttachmentParts;
-  private final Set<String> originalAttachmentNames;
+  private final List<Attachment> attachments;
   private final Map<String, String> originalToNormalizedFilename;
+  // The multipart content of each multipart, so that the tree is parsed once.
+  private final Map<Part, Multipart> partToMultipart;
   private Part mainTextPart;
   private Part mainHtmlPart;
 
-  private EmailProcessor(UserStorage userStorage, Email email, MimeMessage mimeMessage,
-                         ProcessSettings processSettings) {
-    this.userStorage = userStorage;
+  private EmailProcessor(Email email, MimeMessage mimeMessage, ProcessSettings processSettings,
+                         FilenameFactory filenameFactory) {
     this.email = email;
     this.mimeMessage = mimeMessage;
     this.processSettings = processSettings;
-    Set<String> unattachLabelIds = getUnattachLabelIds(processSettings);
-    filenameFactory = new FilenameFactory(processSettings.filenameSchema(), unattachLabelIds);
+    this.filenameFactory = filenameFactory;
     detectedAttachmentParts = new LinkedList<>();
-    originalAttachmentNames = new TreeSet<>();
+    attachments = new ArrayList<>();
     originalToNormalizedFilename = new TreeMap<>();
+    partToMultipart = new IdentityHashMap<>();
+  }
+
+  /**
+   * Compiles the filename schema of the settings, so that a run can name the attachments of all its emails with it.
+   */
+  static FilenameFactory createFilenameFactory(ProcessSettings processSettings) {
+    return new FilenameFactory(processSettings.filenameSchema(), getUnattachLabelIds(processSettings));
   }
 
-  private Set<String> getUnattachLabelIds(ProcessSettings processSettings) {
+  private static Set<String> getUnattachLabelIds(ProcessSettings processSettings) {
     Set<String> unattachLabelIds = new HashSet<>();
     ProcessOption processOption = processSettings.processOption();
     if (!NO_LABEL.id().equals(processOption.downloadedLabelId())) {
@@ -62,24 +89,92 @@ public class EmailProcessor {
     return unattachLabelIds;
   }
 
-  public static MimeMessage process(UserStorage userStorage, Email email, MimeMessage mimeMessage,
-                             ProcessSettings processSettings, Set<String> originalAttachmentNames)
+  /**
+   * Detects attachments and, if removing, rewrites the email without them. Detected attachments are not saved here, so
+   * that the CPU-bound rewrite can run separately from the disk writes; see {@link #saveAttachments}.
+   */
+  public static Result process(Email email, MimeMessage mimeMessage, ProcessSettings processSettings)
       throws IOException, MessagingException {
-    EmailProcessor processor = new EmailProcessor(userStorage, email, mimeMessage, processSettings);
-    // As per https://bugs.openjdk.java.net/browse/JDK-8195686, Java doesn't have direct support for iso-8859-8-i
-    // encoding; however, iso-8859-8 is equivalent, so we pre-emptively replace it.
-    explore(processor.mimeMessage, replaceContentType("iso-8859-8-i", "iso-8859-8", true));
-    explore(processor.mimeMessage, processor::detectAndMaybeSaveAttachment);
+    return process(email, mimeMessage, processSettings, createFilenameFactory(processSettings));
+  }
+
+  /**
+   * @param filenameFactory The factory made by {@link #createFilenameFactory} from the same settings.
+   */
+  static Result process(Email email, MimeMessage mimeMessage, ProcessSettings processSettings,
+                        FilenameFactory filenameFactory) throws IOException, MessagingException {
+    EmailProcessor processor = new EmailProcessor(email, mimeMessage, processSettings, filenameFactory);
+    processor.visit(processor.mimeMessage, true, false);
+    String originalStructure = MimeMessagePrettyPrinter.prettyPrint(processor.mimeMessage, processor::getMultipart);
     if (processSettings.processOption().shouldRemove()) {
       processor.removeDetectedAttachmentParts();
       if (processSettings.addMetadata()) {
-        explore(processor.mimeMessage, processor::findTextAndHtml);
         processor.addReferencesToContent();
       }
     }
     processor.mimeMessage.saveChanges();
-    originalAttachmentNames.addAll(processor.originalAttachmentNames);
-    return processor.mimeMessage;
+    boolean rewritten = processSettings.processOption().shouldRemove() && !processor.attachments.isEmpty();
+    String structure = !rewritten ? originalStructure :
+        MimeMessagePrettyPrinter.prettyPrint(processor.mimeMessage, processor::getMultipart);
+    return new Result(processor.mimeMessage, processor.attachments, originalStructure, structure);
+  }
+
+  /**
+   * Decides from the raw structure alone whether {@link #process} could detect any attachments, so that emails with
+   * nothing to process can be skipped without being parsed. Mirrors {@link #detectAttachment}, erring towards yes.
+   */
+  static boolean mayHaveAttachments(MimeStructureScanner.Structure structure, ProcessOption processOption) {
+    if (!structure.complete()) {
+      return true;
+    }
+    List<MimeStructureScanner.RawPart> parts = structure.parts();
+    boolean[] detect = new boolean[parts.size()];
+    for (int i = 0; i < parts.size(); ++i) {
+      MimeStructureScanner.RawPart part = parts.get(i);
+      if (part.parent() != -1 && !detect[part.parent()]) {
+        continue;
+      }
+      if (!processOption.shouldProcessEmbedded() && part.mimeType().equals("multipart/related")) {
+        continue;
+      }
+      // Encapsulated emails get a filename even without one, and a filename that can't be decoded still counts here.
+      if (part.mimeType().equals("message/rfc822") || isDownloadable(processOption, part.disposition(),
+          part.filename())) {
+        return true;
+      }
+      detect[i] = true;
+    }
+    return false;
+  }
+
+  /**
+   * The result for an email that {@link #mayHaveAttachments} ruled out.
+   */
+  static Result skipped(MimeStructureScanner.Structure structure) {
+    String printedStructure = structure.toString();
+    return new Result(null, List.of(), printedStructure, printedStructure);
+  }
+
+  /**
+   * Saves the attachments detected by {@link #process} to disk if downloading. Removed parts keep their content, so
+   * this works after the email has been rewritten.
+   *
+   * @return The saves, which may still be running, so the email must stay readable until they are done.
+   */
+  public static List<CompletableFuture<Void>> saveAttachments(UserStorage userStorage, Email email,
+                                                              ProcessSettings processSettings,
+                                                              List<Attachment> attachments) {
+    List<CompletableFuture<Void>> saves = new ArrayList<>();
+    if (!processSettings.processOption().shouldDownload()) {
+      return saves;
+    }
+    for (Attachment attachment : attachments) {
+      CompletableFuture<Void> save = userStorage.saveAttachmentAsync(new PartContent(attachment.part()),
+          processSettings.targetDirectory(), attachment.normalizedFilename(), email.getTimestamp());
+      saves.add(save.thenRun(() -> logger.info("Saved attachment %s from email with subject '%s' to file %s.",
+          attachment.originalFilename(), email.getSubject(), attachment.normalizedFilename())));
+    }
+    return saves;
   }
 
   @FunctionalInterface
@@ -120,11 +215,46 @@ public class EmailProcessor {
   }
 
   /**
-   * Detect attachment names. Save attachments to disk if downloading.
+   * Walks the MIME tree once, fixing charsets, detecting attachments with their target filenames, and finding the main
+   * text and HTML parts among the parts that stay.
+   *
+   * @param detect Whether to look for attachments in this part.
+   * @param removed Whether this part is within a detected attachment.
+   */
+  private void visit(Part part, boolean detect, boolean removed) throws IOException, MessagingException {
+    FIX_CONTENT_TYPE.accept(part);
+    boolean detectChildren = false;
+    if (detect) {
+      int numberOfAttachments = attachments.size();
+      detectChildren = detectAttachment(part);
+      removed |= attachments.size() > numberOfAttachments;
+    }
+    if (!removed) {
+      findTextAndHtml(part);
+    }
+    if (part.isMimeType("multipart/*") && part.getContent() instanceof Multipart multipart) {
+      partToMultipart.put(part, multipart);
+      for (int i = 0; i < multipart.getCount(); ++i) {
+        visit(multipart.getBodyPart(i), detectChildren, removed);
+      }
+    }
+  }
+
+  /**
+   * @return The multipart content of the part as remembered from the walk, or null if it isn't a multipart.
+   */
+  private Multipart getMultipart(Part part) throws IOException, MessagingException {
+    Multipart multipart = partToMultipart.get(part);
+    // Parts created while rewriting were not walked.
+    return multipart != null ? multipart : MimeMessagePrettyPrinter.getMultipart(part);
+  }
+
+  /**
+   * Detect attachments and their target filenames.
    *
    * @return Whether to recursively explore child body parts.
    */
-  private boolean detectAndMaybeSaveAttachment(Part part) throws IOException, MessagingException {
+  private boolean detectAttachment(Part part) throws MessagingException, UnsupportedEncodingException {
     if (!processSettings.processOption().shouldProcessEmbedded() && part.isMimeType("multipart/related")) {
       return false;
     }
@@ -133,28 +263,23 @@ public class EmailProcessor {
     if (originalFilename == null && "message/rfc822".equals(contentType)) {
       originalFilename = "inner_email_" + fileCounter + ".eml";
     }
-    if (!isDownloadable(processSettings.processOption(), part, originalFilename)) {
+    if (!isDownloadable(processSettings.processOption(), part.getDisposition(), originalFilename)) {
       return true;
     }
-    originalAttachmentNames.add(originalFilename);
     detectedAttachmentParts.add(part);
-    String normalizedFilename = filenameFactory.getFilename(email, fileCounter++, originalFilename);
-    originalToNormalizedFilename.put(originalFilename, normalizedFilename);
-    if (processSettings.processOption().shouldDownload()) {
-      try (InputStream inputStream = part.getInputStream()) {
-        userStorage.saveAttachment(inputStream, processSettings.targetDirectory(), normalizedFilename, email.getTimestamp());
-        logger.info("Saved attachment %s from email with subject '%s' to file %s.", originalFilename, email.getSubject(),
-            normalizedFilename);
-      }
+    if (emailFilenames == null) {
+      emailFilenames = filenameFactory.forEmail(email);
     }
+    String normalizedFilename = emailFilenames.getFilename(fileCounter++, originalFilename);
+    originalToNormalizedFilename.put(originalFilename, normalizedFilename);
+    attachments.add(new Attachment(part, originalFilename, normalizedFilename));
     return false;
   }
 
   /**
    * Based on the documentation of {@link Part#getDisposition()} and https://tools.ietf.org/html/rfc2183.
    */
-  private boolean isDownloadable(ProcessOption processOption, Part part, String filename) throws MessagingException {
-    String disposition = part.getDisposition();
+  private static boolean isDownloadable(ProcessOption processOption, String disposition, String filename) {
     return (disposition == null || disposition.equalsIgnoreCase(Part.ATTACHMENT) || processOption.processEmbedded())
         && filename != null;
   }
@@ -184,11 +309,22 @@ public class EmailProcessor {
     }
     for (Part part : detectedAttachmentParts) {
       if (part instanceof BodyPart bodyPart) {
-        bodyPart.getParent().removeBodyPart(bodyPart);
+        Multipart parent = bodyPart.getParent();
+        parent.removeBodyPart(bodyPart);
+        markChanged(parent.getParent() != null ? parent.getParent() : mimeMessage);
       }
     }
   }
 
+  /**
+   * Lets a spooled message know which parts to regenerate rather than copy when it is written.
+   */
+  private void markChanged(Part part) {
+    if (mimeMessage instanceof SpooledMimeMessage spooledMimeMessage) {
+      spooledMimeMessage.markChanged(part);
+    }
+  }
+
   private MimeMessage shallowCopy(MimeMessage mimeMessage) throws MessagingException {
     MimeMessage emptyMimeMessage = new MimeMessage(mimeMessage.getSession());
     Enumeration<String> allHeaderLines = mimeMessage.getAllHeaderLines();
@@ -216,23 +352,22 @@ public class EmailProcessor {
     MimeBodyPart htmlBodyPart = new MimeBodyPart();
     htmlBodyPart.setContent("", "text/html; charset=utf-8");
     multipart.addBodyPart(htmlBodyPart);
+    mainTextPart = textBodyPart;
+    mainHtmlPart = htmlBodyPart;
     emptyMimeMessage.setContent(multipart);
     emptyMimeMessage.saveChanges();
     return emptyMimeMessage;
   }
 
   /**
-   * Find text and HTML body parts.
-   *
-   * @return Whether to recursively explore child body parts.
+   * Find the first text and HTML body parts.
    */
-  private boolean findTextAndHtml(Part part) throws MessagingException {
+  private void findTextAndHtml(Part part) throws MessagingException {
     if (part.isMimeType("text/plain") && mainTextPart == null) {
       mainTextPart = part;
     } else if (part.isMimeType("text/html") && mainHtmlPart == null) {
       mainHtmlPart = part;
     }
-    return mainTextPart == null || mainHtmlPart == null;
   }
 
   private void addReferencesToContent() throws IOException, MessagingException {
@@ -248,11 +383,13 @@ public class EmailProcessor {
       String text = mainTextPart.getContent().toString();
       String newText = generateTextSuffix(text, originalToNormalizedFilename, dateTimeString, hostname);
       mainTextPart.setContent(newText, "text/plain; charset=utf-8");
+      markChanged(mainTextPart);
     }
     if (mainHtmlPart != null) {
       String html = mainHtmlPart.getContent().toString();
       String newHtml = generateHtmlSuffix(html, originalToNormalizedFilename, dateTimeString, hostname);
       mainHtmlPart.setContent(newHtml, "text/html; charset=utf-8");
+      markChanged(mainHtmlPart);
     }
   }
 
@@ -319,8 +456,6 @@ public class EmailProcessor {
       suffix.append("<li><i>File links only work in native email apps (e.g. Mail, Outlook) on the target host.</i></li>\n");
     }
     suffix.append("</ul></p>\n");
-    Document document = Jsoup.parse(html);
-    document.body().append(suffix.toString());
-    return document.toString();
+    return HtmlFooterInjector.inject(html, suffix.toString());
   }
 }
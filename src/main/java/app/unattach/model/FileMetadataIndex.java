@@ -0,0 +1,121 @@
+package app.unattach.model;
+
+import app.unattach.utils.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+/**
+ * Persists the metadata index as a journal of JSON records, one per line.
+ *
+ * Records are only ever appended, so a crash can at worst cut off the last record, which is then ignored. On load,
+ * a journal that has grown well beyond the current index is compacted, by atomically replacing it with a snapshot.
+ */
+public class FileMetadataIndex extends MetadataIndex {
+  private static final Logger logger = Logger.get();
+  private static final int MIN_RECORDS_TO_COMPACT = 1000;
+  private static final int MAX_RECORDS_PER_SNAPSHOT_RECORD = 2;
+
+  private final Path path;
+  private Writer writer;
+
+  public FileMetadataIndex() {
+    this(getIndexPath());
+  }
+
+  public FileMetadataIndex(Path path) {
+    this.path = path;
+    load();
+  }
+
+  private void load() {
+    int records = 0;
+    boolean damaged = false;
+    if (Files.exists(path)) {
+      try (BufferedReader reader = Files.newBufferedReader(path, UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          try {
+            apply(new JSONObject(line));
+            ++records;
+          } catch (JSONException | IllegalArgumentException e) {
+            damaged = true;
+          }
+        }
+      } catch (IOException e) {
+        logger.error("Failed to load the metadata index.", e);
+      }
+    }
+    List<JSONObject> snapshot = snapshot();
+    logger.info("Loaded %d metadata index records.", records);
+    // A damaged record may lack its line end, so it is not safe to append after it.
+    if (damaged || records >= MIN_RECORDS_TO_COMPACT && records > MAX_RECORDS_PER_SNAPSHOT_RECORD * snapshot.size()) {
+      compact(snapshot);
+    }
+    try {
+      writer = Files.newBufferedWriter(path, UTF_8, CREATE, APPEND);
+    } catch (IOException e) {
+      logger.error("Failed to open the metadata index for writing. Changes will not be saved.", e);
+    }
+  }
+
+  private void compact(List<JSONObject> snapshot) {
+    logger.info("Compacting the metadata index to %d records...", snapshot.size());
+    Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      try (FileOutputStream out = new FileOutputStream(tempPath.toFile());
+           Writer tempWriter = new BufferedWriter(new OutputStreamWriter(out, UTF_8))) {
+        for (JSONObject record : snapshot) {
+          tempWriter.write(record.toString());
+          tempWriter.write('\n');
+        }
+        tempWriter.flush();
+        out.getFD().sync();
+      }
+      Files.move(tempPath, path, REPLACE_EXISTING, ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.error("Failed to compact the metadata index.", e);
+    }
+  }
+
+  @Override
+  protected synchronized void append(JSONObject record) {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.write(record.toString());
+      writer.write('\n');
+    } catch (IOException e) {
+      logger.error("Failed to save to the metadata index.", e);
+    }
+  }
+
+  @Override
+  public synchronized void flush() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      logger.error("Failed to save the metadata index.", e);
+    }
+  }
+
+  private static Path getIndexPath() {
+    String userHome = System.getProperty("user.home");
+    return Paths.get(userHome, "." + Constants.PRODUCT_NAME.toLowerCase() + ".index");
+  }
+}
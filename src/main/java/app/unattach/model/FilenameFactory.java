@@ -3,69 +3,177 @@ package app.unattach.model;
 import org.apache.commons.io.FilenameUtils;
 
 import java.security.InvalidParameterException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+/**
+ * Names attachments according to a schema such as "${SUBJECT:10}/${ATTACHMENT_NAME}".
+ *
+ * The schema is compiled once into a list of literal and variable tokens, so that naming an attachment is a single pass
+ * that appends each token to one string builder. Values that only depend on the email are worked out once per email,
+ * see {@link #forEmail}.
+ */
 public class FilenameFactory {
   private static final Set<String> DEFAULT_LABELS = Set.of(
       "CATEGORY_FORUMS", "CATEGORY_PERSONAL", "CATEGORY_PROMOTIONS", "CATEGORY_SOCIAL", "CATEGORY_UPDATES",
       "CHAT", "DRAFT", "IMPORTANT", "INBOX", "SENT", "SPAM", "STARRED", "TRASH", "UNREAD"
   );
   public static final String DEFAULT_SCHEMA = "${ATTACHMENT_BASE}-${ID:-4}-${BODY_PART_INDEX}.${ATTACHMENT_EXTENSION}";
+  private static final Pattern MAX_LENGTH_PATTERN = Pattern.compile("-?[0-9]+");
 
-  private final Map<String, Pattern> keyToPattern;
-  private final String schema;
+  private enum Variable {
+    FROM_EMAIL, FROM_NAME, FROM_NAME_OR_EMAIL, SUBJECT, TIMESTAMP, DATE, TIME, ID, LABELS, LABEL_NAMES,
+    CUSTOM_LABEL_NAMES, BODY_PART_INDEX, ATTACHMENT_NAME,
+    // These don't have RAW variants.
+    ATTACHMENT_BASE, ATTACHMENT_EXTENSION;
+
+    private boolean hasRawVariant() {
+      return this != ATTACHMENT_BASE && this != ATTACHMENT_EXTENSION;
+    }
+  }
+
+  /**
+   * Either literal text, or a variable with its maximum length.
+   */
+  private record Token(String literal, Variable variable, boolean raw, int maxLength) {}
+
+  private final List<Token> tokens;
   private final Set<String> unattachLabelIds;
 
+  /**
+   * @throws InvalidParameterException If the schema contains an unknown variable.
+   */
   public FilenameFactory(String schema, Set<String> unattachLabelIds) {
-    keyToPattern = new HashMap<>();
-    this.schema = schema;
+    tokens = compile(schema);
     this.unattachLabelIds = unattachLabelIds;
   }
 
-  public String getFilename(Email email, int bodyPartIndex, String attachmentName) {
-    String template = schema;
-    String name_or_email = email.getFromName().isEmpty() ? email.getFromEmail() : email.getFromName();
-    String normalisedAttachmentName = normalise(attachmentName);
-    String attachmentBase = FilenameUtils.getBaseName(normalisedAttachmentName);
-    String attachmentExtension = FilenameUtils.getExtension(normalisedAttachmentName);
-    template = replaceRawAndNormalised(template, "FROM_EMAIL", email.getFromEmail(), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "FROM_NAME", email.getFromName(), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "FROM_NAME_OR_EMAIL", name_or_email, FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "SUBJECT", email.getSubject(), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "TIMESTAMP", String.valueOf(email.getTimestamp()), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "DATE", email.getDateIso8601(), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "TIME", email.getTimeString(), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "ID", email.getGmailId(), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "BODY_PART_INDEX", String.valueOf(bodyPartIndex), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "LABELS", getLabelIdsString(email), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "LABEL_NAMES", getLabelNamesForFilenames(email), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "CUSTOM_LABEL_NAMES", getCustomLabelNamesForFilenames(email, unattachLabelIds), FilenameFactory::simpleTrim);
-    template = replaceRawAndNormalised(template, "ATTACHMENT_NAME", attachmentName, FilenameFactory::basenameTrim);
-    // ATTACHMENT_BASE and ATTACHMENT_EXTENSION don't have RAW variants.
-    template = replace(template, "ATTACHMENT_BASE", attachmentBase, FilenameFactory::simpleTrim);
-    template = replace(template, "ATTACHMENT_EXTENSION", attachmentExtension, FilenameFactory::simpleTrim);
-    if (template.contains("${")) {
-      int start = template.indexOf("${");
-      int end = template.indexOf("}", start);
-      String unknownPattern = template.substring(start, end == -1 ? template.length() : end + 1);
-      throw new InvalidParameterException("The schema contains an unknown pattern: " + unknownPattern);
+  private static List<Token> compile(String schema) {
+    List<Token> tokens = new ArrayList<>();
+    int position = 0;
+    int start;
+    while ((start = schema.indexOf("${", position)) != -1) {
+      if (start > position) {
+        tokens.add(new Token(schema.substring(position, start), null, false, 0));
+      }
+      int end = schema.indexOf('}', start);
+      if (end == -1) {
+        throw new InvalidParameterException("The schema contains an unknown pattern: " + schema.substring(start));
+      }
+      tokens.add(compileVariable(schema.substring(start, end + 1)));
+      position = end + 1;
+    }
+    if (position < schema.length()) {
+      tokens.add(new Token(schema.substring(position), null, false, 0));
+    }
+    return tokens;
+  }
+
+  private static Token compileVariable(String pattern) {
+    String content = pattern.substring(2, pattern.length() - 1);
+    int colon = content.indexOf(':');
+    String name = colon == -1 ? content : content.substring(0, colon);
+    int maxLength = Integer.MAX_VALUE;
+    if (colon != -1) {
+      String maxLengthString = content.substring(colon + 1);
+      if (!MAX_LENGTH_PATTERN.matcher(maxLengthString).matches()) {
+        throw new InvalidParameterException("The schema contains an unknown pattern: " + pattern);
+      }
+      maxLength = Integer.parseInt(maxLengthString);
+    }
+    boolean raw = name.startsWith("RAW_");
+    Variable variable = getVariable(raw ? name.substring(4) : name);
+    if (variable == null || raw && !variable.hasRawVariant()) {
+      throw new InvalidParameterException("The schema contains an unknown pattern: " + pattern);
+    }
+    return new Token(null, variable, raw, maxLength);
+  }
+
+  private static Variable getVariable(String name) {
+    for (Variable variable : Variable.values()) {
+      if (variable.name().equals(name)) {
+        return variable;
+      }
     }
-    return template;
+    return null;
+  }
+
+  public String getFilename(Email email, int bodyPartIndex, String attachmentName) {
+    return forEmail(email).getFilename(bodyPartIndex, attachmentName);
+  }
+
+  /**
+   * Works out the values of the variables that only depend on the email, for naming its attachments.
+   */
+  public EmailFilenames forEmail(Email email) {
+    return new EmailFilenames(email);
   }
 
-  private Pattern getPattern(String key) {
-    Pattern pattern;
-    if (keyToPattern.containsKey(key)) {
-      pattern = keyToPattern.get(key);
-    } else {
-      keyToPattern.put(key, pattern = Pattern.compile("\\$\\{" + key + "(:(-?[0-9]+))?}"));
+  /**
+   * Names the attachments of one email.
+   */
+  public class EmailFilenames {
+    private final String[] rawValues = new String[Variable.values().length];
+    private final String[] normalisedValues = new String[Variable.values().length];
+
+    private EmailFilenames(Email email) {
+      for (Token token : tokens) {
+        Variable variable = token.variable();
+        if (variable != null && rawValues[variable.ordinal()] == null) {
+          String value = getEmailValue(email, variable);
+          if (value != null) {
+            rawValues[variable.ordinal()] = value;
+            normalisedValues[variable.ordinal()] = normalise(value);
+          }
+        }
+      }
+    }
+
+    private String getEmailValue(Email email, Variable variable) {
+      return switch (variable) {
+        case FROM_EMAIL -> email.getFromEmail();
+        case FROM_NAME -> email.getFromName();
+        case FROM_NAME_OR_EMAIL -> email.getFromName().isEmpty() ? email.getFromEmail() : email.getFromName();
+        case SUBJECT -> email.getSubject();
+        case TIMESTAMP -> String.valueOf(email.getTimestamp());
+        case DATE -> email.getDateIso8601();
+        case TIME -> email.getTimeString();
+        case ID -> email.getGmailId();
+        case LABELS -> getLabelIdsString(email);
+        case LABEL_NAMES -> getLabelNamesForFilenames(email);
+        case CUSTOM_LABEL_NAMES -> getCustomLabelNamesForFilenames(email, unattachLabelIds);
+        // These depend on the attachment.
+        case BODY_PART_INDEX, ATTACHMENT_NAME, ATTACHMENT_BASE, ATTACHMENT_EXTENSION -> null;
+      };
+    }
+
+    public String getFilename(int bodyPartIndex, String attachmentName) {
+      String normalisedAttachmentName = normalise(attachmentName);
+      StringBuilder sb = new StringBuilder();
+      for (Token token : tokens) {
+        if (token.literal() != null) {
+          sb.append(token.literal());
+          continue;
+        }
+        String value = switch (token.variable()) {
+          case BODY_PART_INDEX -> String.valueOf(bodyPartIndex);
+          case ATTACHMENT_NAME -> token.raw() ? attachmentName : normalisedAttachmentName;
+          case ATTACHMENT_BASE -> FilenameUtils.getBaseName(normalisedAttachmentName);
+          case ATTACHMENT_EXTENSION -> FilenameUtils.getExtension(normalisedAttachmentName);
+          default -> (token.raw() ? rawValues : normalisedValues)[token.variable().ordinal()];
+        };
+        if (value == null) {
+          value = "";
+        }
+        int newLength = Math.min(token.maxLength(), value.length());
+        sb.append(token.variable() == Variable.ATTACHMENT_NAME ? basenameTrim(value, token.maxLength(), newLength) :
+            simpleTrim(value, newLength));
+      }
+      return sb.toString();
     }
-    return pattern;
   }
 
   public String getLabelIdsString(Email email) {
@@ -83,40 +191,29 @@ public class FilenameFactory {
         .collect(Collectors.joining(", "));
   }
 
-  private interface Trimmer {
-    String trim(String replacement, int maxLength, int newLength);
-  }
-
-  private String replaceRawAndNormalised(String template, String patternString, String replacement, Trimmer trimmer) {
-    template = replace(template, "RAW_" + patternString, replacement, trimmer);
-    template = replace(template, patternString, replacement, trimmer);
-    return template;
-  }
-
-  private String replace(String template, String patternString, String replacement, Trimmer trimmer) {
-    Pattern pattern = getPattern(patternString);
-    Matcher matcher = pattern.matcher(template);
-    if (replacement == null) {
-      replacement = "";
-    }
-    if (!patternString.startsWith("RAW_")) {
-      replacement = normalise(replacement);
+  /**
+   * Replaces each UTF-16 character that isn't safe in filenames with an underscore, so a surrogate pair, e.g. an emoji,
+   * becomes two underscores, as in filenames saved by earlier versions.
+   */
+  private static String normalise(String filename) {
+    if (filename == null) {
+      return "";
     }
-    if (matcher.find()) {
-      String maxLengthGroup = matcher.group(2);
-      int maxLength = maxLengthGroup == null ? Integer.MAX_VALUE : Integer.parseInt(maxLengthGroup);
-      int newLength = Math.min(maxLength, replacement.length());
-      String replacementTrimmed = trimmer.trim(replacement, maxLength, newLength);
-      template = matcher.replaceFirst(replacementTrimmed);
+    StringBuilder sb = null;
+    for (int i = 0; i < filename.length(); ++i) {
+      char c = filename.charAt(i);
+      boolean safe = c < 128 && (Character.isLetterOrDigit(c) || "-_.@".indexOf(c) != -1);
+      if (!safe && sb == null) {
+        sb = new StringBuilder(filename.length()).append(filename, 0, i);
+      }
+      if (sb != null) {
+        sb.append(safe ? c : '_');
+      }
     }
-    return template;
-  }
-
-  private static String normalise(String filename) {
-    return filename.replaceAll("[^a-zA-Z0-9-_.@]", "_");
+    return sb == null ? filename : sb.toString();
   }
 
-  private static String simpleTrim(String replacement, @SuppressWarnings("unused") int maxLength, int newLength) {
+  private static String simpleTrim(String replacement, int newLength) {
     if (newLength >= 0) {
       return replacement.substring(0, newLength);
     }
@@ -128,7 +225,7 @@ public class FilenameFactory {
   private static String basenameTrim(String replacement, int maxLength, int newLength) {
     int lastDotIndex = replacement.lastIndexOf('.');
     if (lastDotIndex == -1 || newLength < 0) {
-      return simpleTrim(replacement, maxLength, newLength);
+      return simpleTrim(replacement, newLength);
     }
     String basename = replacement.substring(0, lastDotIndex);
     String extension = replacement.substring(lastDotIndex + 1);
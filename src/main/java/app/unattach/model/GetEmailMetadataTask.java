@@ -4,52 +4,141 @@ import app.unattach.controller.LongTask;
 import app.unattach.controller.LongTaskException;
 import app.unattach.model.service.GmailServiceException;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.IntSupplier;
 
-public class GetEmailMetadataTask implements LongTask<GetEmailMetadataTask.Result> {
+public class GetEmailMetadataTask implements LongTask<GetEmailMetadataTask.Result>, AutoCloseable {
   interface Worker {
-    void getEmailMetadata(int startIndexInclusive, int endIndexExclusive) throws GmailServiceException;
+    /**
+     * @return The number of emails that were skipped, since their metadata couldn't be got.
+     */
+    int getEmailMetadata(List<String> emailIds) throws GmailServiceException;
   }
 
-  public static record Result(int currentBatchNumber) {}
+  /**
+   * The IDs of the emails to get metadata for. These may still be arriving while metadata is being fetched.
+   */
+  interface EmailIdSource {
+    /**
+     * Blocks until at least one ID is available, or until there are no more IDs.
+     *
+     * @return Up to the given number of IDs, or an empty list if there are no more IDs.
+     */
+    List<String> next(int maxCount) throws GmailServiceException, InterruptedException;
+    boolean isExhausted();
+    int getNumberOfEmailIds();
+    boolean isComplete();
+    void close();
 
-  private final List<String> emailIds;
-  // (maximum batch size = 100)
-  // batch size = 40 ==> batch quota units = 200 ==> 1 batch / second
-  private final int batchSize = 40;
-  private final int numberOfBatches;
+    static EmailIdSource of(List<String> emailIds) {
+      return new EmailIdSource() {
+        private int nextIndex;
+
+        @Override
+        public List<String> next(int maxCount) {
+          int endIndex = Math.min(emailIds.size(), nextIndex + maxCount);
+          List<String> result = new ArrayList<>(emailIds.subList(nextIndex, endIndex));
+          nextIndex = endIndex;
+          return result;
+        }
+
+        @Override
+        public boolean isExhausted() {
+          return nextIndex >= emailIds.size();
+        }
+
+        @Override
+        public int getNumberOfEmailIds() {
+          return emailIds.size();
+        }
+
+        @Override
+        public boolean isComplete() {
+          return true;
+        }
+
+        @Override
+        public void close() {}
+      };
+    }
+  }
+
+  public static record Result(int currentBatchNumber, int processedEmails, int skippedEmails) {}
+
+  private final EmailIdSource emailIds;
+  // The batch size is decided before each step, so that batches follow the quota available at the time.
+  private final IntSupplier batchSize;
   private final Worker worker;
+  private final Runnable onComplete;
   private int currentBatchNumber;
+  private int processedEmails;
+  private int skippedEmails;
+  private boolean complete;
 
-  GetEmailMetadataTask(List<String> emailIds, Worker worker) {
+  GetEmailMetadataTask(EmailIdSource emailIds, IntSupplier batchSize, Worker worker) {
+    this(emailIds, batchSize, worker, () -> {});
+  }
+
+  /**
+   * @param onComplete Run once, after metadata for all emails has been fetched.
+   */
+  GetEmailMetadataTask(EmailIdSource emailIds, IntSupplier batchSize, Worker worker, Runnable onComplete) {
     this.emailIds = emailIds;
-    numberOfBatches = (emailIds.size() + batchSize - 1) / batchSize;
+    this.batchSize = batchSize;
     this.worker = worker;
+    this.onComplete = onComplete;
+  }
+
+  /**
+   * @return The number of emails found so far.
+   */
+  public int getNumberOfEmails() {
+    return emailIds.getNumberOfEmailIds();
+  }
+
+  /**
+   * @return Whether all emails matching the query have been found.
+   */
+  public boolean isSearchComplete() {
+    return emailIds.isComplete();
   }
 
   @Override
   public int getNumberOfSteps() {
-    return numberOfBatches;
+    // An estimate, since batch sizes can change between steps, and more emails can still be found.
+    int remainingEmails = emailIds.getNumberOfEmailIds() - processedEmails;
+    int nextBatchSize = Math.max(1, batchSize.getAsInt());
+    return currentBatchNumber + (remainingEmails + nextBatchSize - 1) / nextBatchSize;
   }
 
   @Override
   public boolean hasMoreSteps() {
-    return currentBatchNumber < numberOfBatches;
+    // The last step notices that there are no more emails, even when there were none to begin with.
+    return !complete;
   }
 
   @Override
   public Result takeStep() throws LongTaskException {
     try {
-      if (currentBatchNumber != 0) {
-        Thread.sleep(1000);
+      List<String> batch = emailIds.next(Math.max(1, batchSize.getAsInt()));
+      if (!batch.isEmpty()) {
+        skippedEmails += worker.getEmailMetadata(batch);
+        processedEmails += batch.size();
+        ++currentBatchNumber;
       }
-      final int startIndexInclusive = currentBatchNumber * batchSize;
-      final int endIndexExclusive = Math.min(emailIds.size(), (currentBatchNumber + 1) * batchSize);
-      worker.getEmailMetadata(startIndexInclusive, endIndexExclusive);
-      ++currentBatchNumber;
-      return new Result(currentBatchNumber);
+      if (emailIds.isExhausted()) {
+        complete = true;
+        onComplete.run();
+      }
+      return new Result(currentBatchNumber, processedEmails, skippedEmails);
     } catch (Throwable t) {
       throw new LongTaskException(t);
     }
   }
+
+  @Override
+  public void close() {
+    emailIds.close();
+  }
 }
@@ -0,0 +1,226 @@
+package app.unattach.model;
+
+import app.unattach.model.attachmentstorage.UserStorage;
+import app.unattach.model.service.GmailService;
+import app.unattach.model.service.GmailServiceException;
+import app.unattach.utils.Logger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Collects label additions and removals of original emails, and sends them to Gmail in bulk requests.
+ *
+ * Deferring the removal of an original is safe, since its replacement has already been inserted; at worst, an
+ * interrupted run leaves both copies in the mailbox. To keep that window small, writes are sent once a batch is full,
+ * or once the oldest queued write has waited a few seconds. Before originals are removed, what was saved of them, e.g.
+ * their backups, is flushed to the user's storage.
+ *
+ * Each write belongs to the email being processed, so that a failed request can be reported against the emails it was
+ * for. Requests are sent outside the queue's lock, so that other workers can keep queueing in the meantime.
+ */
+class GmailWriteQueue implements ProcessEmailsTask.PendingWrites {
+  private static final Logger logger = Logger.get();
+  private static final int MAX_REMOVAL_BATCH_SIZE = 100;
+  private static final long MAX_DELAY_MILLIS = 5000;
+
+  private record Write(String emailId, String messageId) {}
+
+  // A label to add, or removals if the label ID is null.
+  private record Batch(String labelId, boolean permanentlyRemove, List<Write> writes) {
+    private boolean isRemoval() {
+      return labelId == null;
+    }
+  }
+
+  private final GmailService service;
+  private final UserStorage userStorage;
+  private final int maxBatchSize;
+  private final Map<String, List<Write>> labelIdToWrites = new TreeMap<>();
+  private final Map<Boolean, List<Write>> permanentlyRemoveToWrites = new TreeMap<>();
+  private final Map<String, Integer> emailIdToPendingWrites = new HashMap<>();
+  private final Map<String, Throwable> emailIdToFailure = new HashMap<>();
+  // When the oldest queued write was queued, or 0 if none is.
+  private long oldestWriteMillis;
+
+  GmailWriteQueue(GmailService service, UserStorage userStorage) {
+    this(service, userStorage, GmailService.MAX_BULK_WRITE_SIZE);
+  }
+
+  GmailWriteQueue(GmailService service, UserStorage userStorage, int maxBatchSize) {
+    this.service = service;
+    this.userStorage = userStorage;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * @param emailId The ID of the original email being processed, which the write belongs to.
+   */
+  void addLabel(String emailId, String messageId, String labelId) {
+    List<Batch> batches;
+    synchronized (this) {
+      queue(labelIdToWrites.computeIfAbsent(labelId, k -> new ArrayList<>()), emailId, messageId);
+      batches = takeBatches(false);
+    }
+    send(batches);
+  }
+
+  /**
+   * @param emailId The ID of the original email being processed, which the write belongs to.
+   */
+  void removeMessage(String emailId, String messageId, boolean permanentlyRemove) {
+    List<Batch> batches;
+    synchronized (this) {
+      queue(permanentlyRemoveToWrites.computeIfAbsent(permanentlyRemove, k -> new ArrayList<>()), emailId, messageId);
+      batches = takeBatches(false);
+    }
+    send(batches);
+  }
+
+  @Override
+  public void flushIfDue() {
+    List<Batch> batches;
+    synchronized (this) {
+      batches = takeBatches(false);
+    }
+    send(batches);
+  }
+
+  /**
+   * Sends everything queued. The user's storage is flushed too, as this is also the end of a run.
+   */
+  @Override
+  public void flush() {
+    List<Batch> batches;
+    synchronized (this) {
+      batches = takeBatches(true);
+    }
+    if (batches.stream().noneMatch(Batch::isRemoval)) {
+      try {
+        userStorage.flush();
+      } catch (IOException e) {
+        logger.error("Failed to flush the user's storage.", e);
+      }
+    }
+    send(batches);
+  }
+
+  @Override
+  public synchronized boolean isSettled(String emailId) {
+    return !emailIdToPendingWrites.containsKey(emailId);
+  }
+
+  @Override
+  public synchronized Throwable takeFailure(String emailId) {
+    return emailIdToFailure.remove(emailId);
+  }
+
+  private void queue(List<Write> writes, String emailId, String messageId) {
+    writes.add(new Write(emailId, messageId));
+    emailIdToPendingWrites.merge(emailId, 1, Integer::sum);
+    if (oldestWriteMillis == 0) {
+      oldestWriteMillis = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * @param all Whether to take all queued writes, rather than only full batches, or all once they waited too long.
+   */
+  private List<Batch> takeBatches(boolean all) {
+    if (oldestWriteMillis == 0) {
+      return List.of();
+    }
+    all = all || System.currentTimeMillis() - oldestWriteMillis >= MAX_DELAY_MILLIS;
+    List<Batch> batches = new ArrayList<>();
+    for (Iterator<Map.Entry<String, List<Write>>> it = labelIdToWrites.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, List<Write>> entry = it.next();
+      if (all || entry.getValue().size() >= maxBatchSize) {
+        batches.add(new Batch(entry.getKey(), false, entry.getValue()));
+        it.remove();
+      }
+    }
+    int maxRemovalBatchSize = Math.min(maxBatchSize, MAX_REMOVAL_BATCH_SIZE);
+    for (Iterator<Map.Entry<Boolean, List<Write>>> it = permanentlyRemoveToWrites.entrySet().iterator();
+         it.hasNext(); ) {
+      Map.Entry<Boolean, List<Write>> entry = it.next();
+      if (all || entry.getValue().size() >= maxRemovalBatchSize) {
+        batches.add(new Batch(null, entry.getKey(), entry.getValue()));
+        it.remove();
+      }
+    }
+    if (labelIdToWrites.isEmpty() && permanentlyRemoveToWrites.isEmpty()) {
+      oldestWriteMillis = 0;
+    }
+    return batches;
+  }
+
+  private void send(List<Batch> batches) {
+    if (batches.isEmpty()) {
+      return;
+    }
+    IOException storageException = null;
+    if (batches.stream().anyMatch(Batch::isRemoval)) {
+      try {
+        userStorage.flush();
+      } catch (IOException e) {
+        storageException = e;
+      }
+    }
+    for (Batch batch : batches) {
+      Throwable failure = null;
+      try {
+        if (!batch.isRemoval()) {
+          sendLabel(batch);
+        } else if (storageException != null) {
+          // Keep the originals if what was saved of them may not last.
+          failure = storageException;
+        } else {
+          sendRemoval(batch);
+        }
+      } catch (GmailServiceException | RuntimeException e) {
+        failure = e;
+      }
+      settle(batch, failure);
+    }
+  }
+
+  private void sendLabel(Batch batch) throws GmailServiceException {
+    List<String> messageIds = getMessageIds(batch);
+    logger.info("Adding label %s to %d emails...", batch.labelId(), messageIds.size());
+    if (messageIds.size() == 1) {
+      service.addLabel(messageIds.get(0), batch.labelId()); // 5 quota units
+    } else {
+      service.addLabel(messageIds, batch.labelId()); // 50 quota units
+    }
+  }
+
+  private void sendRemoval(Batch batch) throws GmailServiceException {
+    List<String> messageIds = getMessageIds(batch);
+    logger.info("Removing %d original emails...", messageIds.size());
+    if (messageIds.size() == 1) {
+      service.removeMessage(messageIds.get(0), batch.permanentlyRemove()); // 5-10 quota units
+    } else {
+      service.removeMessages(messageIds, batch.permanentlyRemove()); // 50 quota units
+    }
+  }
+
+  private static List<String> getMessageIds(Batch batch) {
+    List<String> messageIds = new ArrayList<>(batch.writes().size());
+    for (Write write : batch.writes()) {
+      messageIds.add(write.messageId());
+    }
+    return messageIds;
+  }
+
+  private synchronized void settle(Batch batch, Throwable failure) {
+    if (failure != null) {
+      logger.error("Failed to send a batch of " + batch.writes().size() + " writes.", failure);
+    }
+    for (Write write : batch.writes()) {
+      if (failure != null) {
+        emailIdToFailure.putIfAbsent(write.emailId(), failure);
+      }
+      emailIdToPendingWrites.computeIfPresent(write.emailId(), (k, pending) -> pending == 1 ? null : pending - 1);
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package app.unattach.model;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+import java.util.List;
+
+/**
+ * Appends a footer to the body of an HTML document.
+ *
+ * A single forward scan finds where the body closes, and the footer is spliced in there, leaving the rest of the
+ * markup exactly as it was. Only documents that the scan can't place the footer in with confidence, e.g. fragments
+ * without a closing body tag, are parsed and re-serialised with Jsoup.
+ */
+class HtmlFooterInjector {
+  // The contents of these elements are not markup, so they can't close the body.
+  private static final List<String> RAW_TEXT_ELEMENTS = List.of("script", "style", "textarea", "title");
+
+  static String inject(String html, String footer) {
+    int bodyEnd = findBodyEnd(html);
+    if (bodyEnd == -1) {
+      Document document = Jsoup.parse(html);
+      document.body().append(footer);
+      return document.toString();
+    }
+    return html.substring(0, bodyEnd) + footer + html.substring(bodyEnd);
+  }
+
+  /**
+   * @return The position of the tag that closes the body, or -1 if there is no such tag, or if there is more than
+   * comments and the closing html tag after it.
+   */
+  static int findBodyEnd(String html) {
+    int bodyEnd = -1;
+    int position = 0;
+    while ((position = html.indexOf('<', position)) != -1) {
+      if (html.startsWith("<!--", position)) {
+        position = skipComment(html, position);
+        if (position == -1) {
+          return -1;
+        }
+        continue;
+      }
+      String rawTextElement = getRawTextElement(html, position);
+      if (rawTextElement != null) {
+        position = indexOfTag(html, "</" + rawTextElement, position + 1 + rawTextElement.length());
+        if (position == -1) {
+          return -1;
+        }
+        continue;
+      }
+      if (isTag(html, position, "</body")) {
+        bodyEnd = position;
+      }
+      ++position;
+    }
+    return bodyEnd != -1 && isTrailer(html, bodyEnd) ? bodyEnd : -1;
+  }
+
+  /**
+   * Whether only the closing body and html tags, comments and whitespace follow.
+   */
+  private static boolean isTrailer(String html, int position) {
+    while (position < html.length()) {
+      char c = html.charAt(position);
+      if (Character.isWhitespace(c)) {
+        ++position;
+      } else if (html.startsWith("<!--", position)) {
+        position = skipComment(html, position);
+        if (position == -1) {
+          return false;
+        }
+      } else if (isTag(html, position, "</body") || isTag(html, position, "</html")) {
+        position = html.indexOf('>', position);
+        if (position == -1) {
+          return false;
+        }
+        ++position;
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return The position after the comment that starts at the given position, or -1 if it doesn't end.
+   */
+  private static int skipComment(String html, int position) {
+    int end = html.indexOf("-->", position + 4);
+    return end == -1 ? -1 : end + 3;
+  }
+
+  private static String getRawTextElement(String html, int position) {
+    for (String element : RAW_TEXT_ELEMENTS) {
+      if (isTag(html, position, "<" + element)) {
+        return element;
+      }
+    }
+    return null;
+  }
+
+  private static int indexOfTag(String html, String tag, int from) {
+    for (int position = html.indexOf('<', from); position != -1; position = html.indexOf('<', position + 1)) {
+      if (isTag(html, position, tag)) {
+        return position;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Whether the given tag, such as "&lt;/body", starts at the given position, in any case.
+   */
+  private static boolean isTag(String html, int position, String tag) {
+    if (!html.regionMatches(true, position, tag, 0, tag.length())) {
+      return false;
+    }
+    int end = position + tag.length();
+    if (end == html.length()) {
+      return true;
+    }
+    char c = html.charAt(end);
+    return Character.isWhitespace(c) || c == '>' || c == '/';
+  }
+}
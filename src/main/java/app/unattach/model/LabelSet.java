@@ -0,0 +1,65 @@
+package app.unattach.model;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The labels of an email, sorted by name. Emails tend to share a few combinations of labels, so each combination is
+ * kept once and shared by all emails with it, together with its display string.
+ *
+ * The pool of combinations is cleared when a new search starts, so that it doesn't keep growing across searches and
+ * accounts. Emails of earlier searches keep their label sets; they just aren't shared with later ones.
+ */
+final class LabelSet {
+  private static final Map<List<GmailLabel>, LabelSet> pool = new ConcurrentHashMap<>();
+  static final LabelSet EMPTY = new LabelSet(List.of());
+
+  private final List<GmailLabel> labels;
+  private volatile String namesDelimited;
+
+  private LabelSet(List<GmailLabel> labels) {
+    this.labels = labels;
+  }
+
+  /**
+   * @param labels Labels in any order. Of labels with the same name, only the first is kept.
+   */
+  static LabelSet of(Collection<GmailLabel> labels) {
+    if (labels == null || labels.isEmpty()) {
+      return EMPTY;
+    }
+    return pool.computeIfAbsent(List.copyOf(new TreeSet<>(labels)), LabelSet::new);
+  }
+
+  static void clearPool() {
+    pool.clear();
+  }
+
+  List<GmailLabel> labels() {
+    return labels;
+  }
+
+  String getNamesDelimited() {
+    String namesDelimited = this.namesDelimited;
+    if (namesDelimited == null) {
+      StringBuilder sb = new StringBuilder();
+      for (GmailLabel label : labels) {
+        if (!sb.isEmpty()) {
+          sb.append(", ");
+        }
+        sb.append(label.name());
+      }
+      namesDelimited = sb.toString();
+      this.namesDelimited = namesDelimited;
+    }
+    return namesDelimited;
+  }
+
+  @Override
+  public String toString() {
+    return labels.toString();
+  }
+}
@@ -1,14 +1,16 @@
 package app.unattach.model;
 
-import app.unattach.controller.LongTask;
 import app.unattach.model.attachmentstorage.UserStorage;
+import app.unattach.model.attachmentstorage.WriteBehindUserStorage;
 import app.unattach.model.service.GmailService;
 import app.unattach.model.service.GmailServiceException;
 import app.unattach.model.service.GmailServiceManager;
 import app.unattach.model.service.GmailServiceManagerException;
+import app.unattach.model.service.HistoryExpiredException;
+import app.unattach.model.service.MailboxChanges;
+import app.unattach.model.service.MessageIdPage;
 import app.unattach.utils.AttachmentNameExtractor;
 import app.unattach.utils.Logger;
-import app.unattach.utils.MimeMessagePrettyPrinter;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.http.HttpHeaders;
@@ -18,26 +20,39 @@ import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static app.unattach.model.GmailLabel.NO_LABEL;
-import static org.apache.commons.codec.binary.Base64.encodeBase64URLSafeString;
 
 public class LiveModel implements Model {
   private static final Logger logger = Logger.get();
+  // Network stages mostly wait on Gmail, so a few workers keep the quota busy.
+  private static final int NETWORK_STAGE_WORKERS = 4;
+  private static final int DISK_STAGE_WORKERS = 2;
+  // Saves that wait for a disk worker; each holds on to its spooled email.
+  private static final int MAX_PENDING_SAVES = 16;
 
   private final Config config;
   private final UserStorage userStorage;
   private final GmailServiceManager gmailServiceManager;
+  private final MetadataIndex metadataIndex;
   private GmailService service;
   private List<Email> searchResults;
+  // The query whose results are up to date as of the history ID of the metadata index.
+  private String syncedQuery;
   private String emailAddress;
 
-  public LiveModel(Config config, UserStorage userStorage, GmailServiceManager gmailServiceManager) {
+  public LiveModel(Config config, UserStorage userStorage, GmailServiceManager gmailServiceManager,
+                   MetadataIndex metadataIndex) {
     this.config = config;
-    this.userStorage = userStorage;
+    // Saving in the background lets slow disks overlap with Gmail calls.
+    this.userStorage = new WriteBehindUserStorage(userStorage, DISK_STAGE_WORKERS, MAX_PENDING_SAVES);
     this.gmailServiceManager = gmailServiceManager;
+    this.metadataIndex = metadataIndex;
     configureMimeLibrary();
     reset();
   }
@@ -71,11 +86,13 @@ public class LiveModel implements Model {
   private void reset() {
     service = null;
     emailAddress = null;
+    syncedQuery = null;
     clearPreviousSearchResults();
   }
 
   private void clearPreviousSearchResults() {
-    searchResults = new ArrayList<>();
+    searchResults = Collections.synchronizedList(new ArrayList<>());
+    LabelSet.clearPool();
   }
 
   @Override
@@ -91,6 +108,7 @@ public class LiveModel implements Model {
       // Test call to the service. This can fail due to token issues.
       String emailAddress = getEmailAddress();
       logger.info("Signed in as %s.", emailAddress);
+      restoreLastSearchResults(emailAddress);
     } catch (GmailServiceException e) {
       logger.warn("Initial signing in failed. Explicitly signing out and retrying...", e);
       signOut();
@@ -99,8 +117,7 @@ public class LiveModel implements Model {
   }
 
   private void configureService() throws GmailServiceManagerException {
-    // 250 quota units / user / second
-    // each set of requests should assume they start with clean quota
+    // The service admits all calls against the 250 quota units / user / second limit.
     service = gmailServiceManager.signIn();
   }
 
@@ -131,46 +148,103 @@ public class LiveModel implements Model {
   }
 
   @Override
-  public LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings) {
-    return new ProcessEmailTask(email, e -> processEmail(e, processSettings) /* 40 quota units */);
+  public ProcessEmailsTask getProcessTask(List<Email> emails, ProcessSettings processSettings) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    GmailWriteQueue writeQueue = new GmailWriteQueue(service, userStorage);
+    FilenameFactory filenameFactory = EmailProcessor.createFilenameFactory(processSettings);
+    ProcessingPipeline<ProcessEmailJob> pipeline = new ProcessingPipeline<ProcessEmailJob>("process-email")
+        .addStage("download", NETWORK_STAGE_WORKERS, NETWORK_STAGE_WORKERS, this::downloadEmail)
+        .addStage("rewrite", processors, processors, job -> rewriteEmail(job, processSettings, filenameFactory))
+        .addStage("store", DISK_STAGE_WORKERS, 2 * DISK_STAGE_WORKERS, job -> storeEmail(job, processSettings))
+        .addStage("upload", NETWORK_STAGE_WORKERS, NETWORK_STAGE_WORKERS,
+            job -> uploadEmail(job, processSettings, writeQueue));
+    MemoryBudget memoryBudget = MemoryBudget.ofMaxMemory(config.getMemoryBudgetPercent());
+    return new ProcessEmailsTask(emails, pipeline, memoryBudget, writeQueue);
   }
 
-  private ProcessEmailResult processEmail(Email email, ProcessSettings processSettings)
-      throws IOException, MessagingException, GmailServiceException {
-    Message message = service.getRawMessage(email.getGmailId()); // 5 quota units
-    logger.info("Label IDs of the original email: " + message.getLabelIds());
-    GmailService.trackInDebugMode(logger, message);
-    MimeMessage mimeMessage = GmailService.getMimeMessage(message);
-    logger.info("MIME structure:%n%s", MimeMessagePrettyPrinter.prettyPrint(mimeMessage));
-    String newId = null;
-    ProcessOption processOption = processSettings.processOption();
-    if (processOption.backupEmail()) {
-      backupEmail(email, processSettings, mimeMessage);
+  private void downloadEmail(ProcessEmailJob job) throws IOException, GmailServiceException {
+    // The raw email goes straight to disk, so large attachments never have to fit in memory.
+    job.rawFile = File.createTempFile(Constants.PRODUCT_NAME.toLowerCase() + "-download-", ".eml");
+    job.message = service.getRawMessage(job.email.getGmailId(), job.rawFile); // 5 quota units
+    logger.info("Label IDs of the original email: " + job.message.getLabelIds());
+    if (Constants.DEBUG_MODE) {
+      // The message is read without its raw contents, which tracked messages need, as test emails are made from them.
+      GmailService.trackInDebugMode(logger, job.message.clone().encodeRaw(Files.readAllBytes(job.rawFile.toPath())));
     }
-    Set<String> originalAttachmentNames = new TreeSet<>();
-    mimeMessage = EmailProcessor.process(userStorage, email, mimeMessage, processSettings, originalAttachmentNames);
-    if (processOption.shouldDownload() && !processOption.shouldRemove() &&
-        !NO_LABEL.id().equals(processOption.downloadedLabelId())) {
-      service.addLabel(message.getId(), processOption.downloadedLabelId());
+  }
+
+  private void rewriteEmail(ProcessEmailJob job, ProcessSettings processSettings, FilenameFactory filenameFactory)
+      throws IOException, MessagingException {
+    job.rawStream = SpoolInputStream.open(job.rawFile);
+    MimeStructureScanner.Structure rawStructure;
+    try (InputStream inputStream = job.rawStream.newStream(0, -1)) {
+      rawStructure = MimeStructureScanner.scan(inputStream);
+    }
+    if (!EmailProcessor.mayHaveAttachments(rawStructure, processSettings.processOption())) {
+      // E.g. emails whose only files are inline images don't need the MIME tree built.
+      logger.info("No attachments to process in MIME structure:%n%s", rawStructure);
+      if (processSettings.processOption().backupEmail()) {
+        job.originalMimeMessage = GmailService.getMimeMessage(job.rawStream);
+      }
+      job.processorResult = EmailProcessor.skipped(rawStructure);
+      return;
     }
-    if (processOption.shouldRemove() && !originalAttachmentNames.isEmpty()) {
-      logger.info("New MIME structure:%n%s", MimeMessagePrettyPrinter.prettyPrint(mimeMessage));
-      updateRawMessage(message, mimeMessage);
+    // Both messages read their contents from the spooled file, so keeping the original for the backup is cheap.
+    job.originalMimeMessage = GmailService.getMimeMessage(job.rawStream);
+    // Parts that are not changed are later written by copying them from the spooled file.
+    MimeMessage mimeMessage = SpooledMimeMessage.parse(job.rawStream);
+    job.processorResult = EmailProcessor.process(job.email, mimeMessage, processSettings, filenameFactory);
+    logger.info("MIME structure:%n%s", job.processorResult.originalStructure());
+    if (shouldUpdateEmail(job, processSettings.processOption())) {
+      logger.info("New MIME structure:%n%s", job.processorResult.structure());
+    }
+  }
+
+  private void storeEmail(ProcessEmailJob job, ProcessSettings processSettings) {
+    if (processSettings.processOption().backupEmail()) {
+      job.saves.add(backupEmail(job.email, processSettings, job.originalMimeMessage));
+    }
+    job.saves.addAll(EmailProcessor.saveAttachments(userStorage, job.email, processSettings,
+        job.processorResult.attachments()));
+    job.originalMimeMessage = null;
+  }
+
+  private void uploadEmail(ProcessEmailJob job, ProcessSettings processSettings, GmailWriteQueue writeQueue)
+      throws GmailServiceException, IOException, MessagingException {
+    Message message = job.message;
+    String newId = null;
+    ProcessOption processOption = processSettings.processOption();
+    Message newMessage = null;
+    // Nothing is changed in the mailbox until what was saved from the email is on disk, so that a failed save leaves
+    // the original as it was, and no copy claims that its attachments were saved.
+    UserStorage.awaitAll(job.saves);
+    if (shouldUpdateEmail(job, processOption)) {
       removeUnknownLabels(processSettings, message);
       logger.info("Label IDs of the email being inserted: " + message.getLabelIds());
-      Message newMessage = service.insertMessage(message); // 25 quota units
+      newMessage = service.insertMessage(message, job.processorResult.mimeMessage()); // 25 quota units
       newId = newMessage.getId();
       GmailService.trackInDebugMode(logger, newMessage);
+    }
+    if (processOption.shouldDownload() && !processOption.shouldRemove() &&
+        !NO_LABEL.id().equals(processOption.downloadedLabelId())) {
+      writeQueue.addLabel(message.getId(), message.getId(), processOption.downloadedLabelId());
+    }
+    if (newMessage != null) {
       if (processOption.shouldDownload() && !NO_LABEL.id().equals(processOption.downloadedLabelId())) {
-        service.addLabel(newMessage.getId(), processOption.downloadedLabelId());
+        writeQueue.addLabel(message.getId(), newMessage.getId(), processOption.downloadedLabelId());
       }
       if (!NO_LABEL.id().equals(processOption.removedLabelId())) {
-        service.addLabel(newMessage.getId(), processOption.removedLabelId());
+        writeQueue.addLabel(message.getId(), newMessage.getId(), processOption.removedLabelId());
       }
-      // 5-10 quota units
-      service.removeMessage(message.getId(), processOption.permanentlyRemoveOriginal());
+      writeQueue.removeMessage(message.getId(), message.getId(), processOption.permanentlyRemoveOriginal());
     }
-    return new ProcessEmailResult(newId, originalAttachmentNames);
+    job.result = new ProcessEmailResult(newId, job.processorResult.getOriginalAttachmentNames());
+    job.message = null;
+    job.processorResult = null;
+  }
+
+  private static boolean shouldUpdateEmail(ProcessEmailJob job, ProcessOption processOption) {
+    return processOption.shouldRemove() && !job.processorResult.attachments().isEmpty();
   }
 
   private void removeUnknownLabels(ProcessSettings processSettings, Message message) {
@@ -187,35 +261,228 @@ public class LiveModel implements Model {
     }
   }
 
-  private void backupEmail(Email email, ProcessSettings processSettings, MimeMessage mimeMessage)
-          throws IOException, MessagingException {
+  private CompletableFuture<Void> backupEmail(Email email, ProcessSettings processSettings, MimeMessage mimeMessage) {
     String filename = email.getGmailId() + ".eml";
-    userStorage.saveMessage(mimeMessage, processSettings.targetDirectory(), filename);
-  }
-
-  private void updateRawMessage(Message message, MimeMessage mimeMessage) throws IOException, MessagingException {
-    try (ByteArrayOutputStream buffer = new ByteArrayOutputStream()) {
-      mimeMessage.writeTo(buffer);
-      String raw = encodeBase64URLSafeString(buffer.toByteArray());
-      message.setRaw(raw);
-    }
+    return userStorage.saveMessageAsync(mimeMessage, processSettings.targetDirectory(), filename);
   }
 
   @Override
   public GetEmailMetadataTask getSearchTask(String query) throws GmailServiceException {
     logger.info("Getting email labels...");
     SortedMap<String, String> idToLabel = getIdToLabel();
+    updateMetadataIndex();
     logger.info("Searching with query '%s'...", query);
     clearPreviousSearchResults();
-    List<Message> messages = service.search(query);
-    logger.info("Found %d results.", messages.size());
-    ArrayList<String> emailIdsToProcess =
-        messages.stream().map(Message::getId).collect(Collectors.toCollection(ArrayList::new));
+    syncedQuery = null;
+    // Each batch is checkpointed, so a stopped or crashed search can be restored, and resumed by searching again. The
+    // resumed search takes the emails found so far from the metadata index, so it quickly catches up.
+    metadataIndex.setLastResults(query, List.of(), false);
+    metadataIndex.flush();
+    GetEmailMetadataTask.Worker worker = getMetadataWorker(idToLabel, Map.of(), new HashSet<>());
+
+    // Result pages keep being listed in the background while metadata for earlier pages is fetched.
+    return new GetEmailMetadataTask(MessageIdStream.start(service, query), service::getMetadataBatchSize,
+        emailIds -> {
+          int skippedEmails = worker.getEmailMetadata(emailIds);
+          metadataIndex.addLastResults(emailIds);
+          metadataIndex.flush();
+          return skippedEmails;
+        }, () -> onSynced(query));
+  }
 
-    JsonBatchCallback<Message> perEmailCallback = new JsonBatchCallback<>() {
+  /**
+   * Brings the results of the last search up to date, fetching metadata only for emails that changed since then.
+   * Falls back to a full search if there are no such results, or if the mailbox history is no longer available.
+   */
+  @Override
+  public GetEmailMetadataTask getSyncTask(String query) throws GmailServiceException {
+    if (!query.equals(syncedQuery)) {
+      return getSearchTask(query);
+    }
+    MailboxChanges changes = updateMetadataIndex();
+    if (changes == null) {
+      return getSearchTask(query);
+    }
+    if (changes.isEmpty()) {
+      logger.info("No emails changed since the last search.");
+      return new GetEmailMetadataTask(GetEmailMetadataTask.EmailIdSource.of(List.of()),
+          service::getMetadataBatchSize, emailIds -> 0, () -> onSynced(query));
+    }
+    // The metadata index is already past the changes, so if the sync is interrupted, the next one searches again rather
+    // than keep the results that weren't brought up to date.
+    syncedQuery = null;
+    logger.info("%d emails changed and %d emails were removed since the last search.",
+        changes.changedMessageIds().size(), changes.removedMessageIds().size());
+    logger.info("Getting email labels...");
+    SortedMap<String, String> idToLabel = getIdToLabel();
+    // Listing the matching IDs is cheap compared to fetching metadata, and it is the only way to tell whether
+    // a changed email still matches the query.
+    logger.info("Searching with query '%s'...", query);
+    Set<String> matchingIds = searchAll(query);
+    searchResults.removeIf(email -> !matchingIds.contains(email.getGmailId()));
+    Map<String, Integer> changedIdToIndex = new HashMap<>();
+    Set<String> unchangedIds = new HashSet<>();
+    for (int i = 0; i < searchResults.size(); ++i) {
+      String emailId = searchResults.get(i).getGmailId();
+      if (changes.changedMessageIds().contains(emailId)) {
+        changedIdToIndex.put(emailId, i);
+      } else {
+        unchangedIds.add(emailId);
+      }
+    }
+    List<String> emailIdsToFetch = matchingIds.stream().filter(id -> !unchangedIds.contains(id))
+        .collect(Collectors.toList());
+    logger.info("Found %d results, %d of which are new or changed.", matchingIds.size(), emailIdsToFetch.size());
+    Set<String> staleIds = Collections.synchronizedSet(new HashSet<>());
+    return new GetEmailMetadataTask(GetEmailMetadataTask.EmailIdSource.of(emailIdsToFetch),
+        service::getMetadataBatchSize, getMetadataWorker(idToLabel, changedIdToIndex, staleIds), () -> {
+          // Removed only now, since the indices of the results must not shift while they are being replaced.
+          searchResults.removeIf(email -> staleIds.contains(email.getGmailId()));
+          // The next sync then searches again, which fetches these emails again.
+          onSynced(query, staleIds.isEmpty());
+        });
+  }
+
+  /**
+   * Removes emails that changed since the metadata index was last updated from the index.
+   *
+   * @return The changes, or null if they are not known, in which case the index starts over.
+   */
+  private MailboxChanges updateMetadataIndex() throws GmailServiceException {
+    String emailAddress = getEmailAddress();
+    String historyId = metadataIndex.getHistoryId();
+    if (emailAddress.equals(metadataIndex.getEmailAddress()) && historyId != null) {
+      logger.info("Getting changes since history ID %s...", historyId);
+      try {
+        MailboxChanges changes = service.getChangesSince(historyId);
+        metadataIndex.removeAll(changes.changedMessageIds());
+        metadataIndex.removeAll(changes.removedMessageIds());
+        metadataIndex.setHistoryId(changes.historyId());
+        return changes;
+      } catch (HistoryExpiredException e) {
+        logger.info("The mailbox history since the last update of the metadata index is no longer available.");
+      }
+    }
+    metadataIndex.reset(emailAddress);
+    // Taken before searching, so that changes made during the search are picked up by the next update.
+    metadataIndex.setHistoryId(service.getHistoryId());
+    return null;
+  }
+
+  private Set<String> searchAll(String query) throws GmailServiceException {
+    Set<String> messageIds = new LinkedHashSet<>();
+    String pageToken = null;
+    do {
+      MessageIdPage page = service.search(query, pageToken);
+      messageIds.addAll(page.messageIds());
+      pageToken = page.nextPageToken();
+    } while (pageToken != null);
+    return messageIds;
+  }
+
+  private void onSynced(String query) {
+    onSynced(query, true);
+  }
+
+  /**
+   * @param complete Whether the results are up to date, rather than missing emails that changed.
+   */
+  private void onSynced(String query, boolean complete) {
+    syncedQuery = complete ? query : null;
+    List<String> emailIds = searchResults.stream().map(Email::getGmailId).collect(Collectors.toList());
+    metadataIndex.setLastResults(query, emailIds, complete);
+    metadataIndex.flush();
+  }
+
+  private void restoreLastSearchResults(String emailAddress) {
+    String lastQuery = metadataIndex.getLastQuery();
+    if (!emailAddress.equals(metadataIndex.getEmailAddress()) || lastQuery == null) {
+      return;
+    }
+    searchResults = Collections.synchronizedList(metadataIndex.getLastResults().stream().map(EmailMetadata::toEmail)
+        .collect(Collectors.toCollection(ArrayList::new)));
+    if (metadataIndex.isLastSearchComplete()) {
+      syncedQuery = lastQuery;
+      logger.info("Restored %d results of the last search with query '%s'.", searchResults.size(), lastQuery);
+    } else {
+      logger.info("Restored %d results of the interrupted search with query '%s'.", searchResults.size(), lastQuery);
+    }
+  }
+
+  @Override
+  public String getInterruptedSearchQuery() {
+    return metadataIndex.isLastSearchComplete() ? null : metadataIndex.getLastQuery();
+  }
+
+  /**
+   * Emails in the metadata index are taken from there; metadata of other emails is fetched, and added to the index.
+   *
+   * @param idToIndex Search results that are replaced in place by the fetched metadata. Other emails are appended.
+   * @param staleIds Collects the IDs of search results whose metadata couldn't be got, and so weren't replaced.
+   */
+  private GetEmailMetadataTask.Worker getMetadataWorker(SortedMap<String, String> idToLabel,
+                                                        Map<String, Integer> idToIndex, Set<String> staleIds) {
+    return emailIds -> {
+      Map<String, EmailMetadata> idToMetadata = new HashMap<>();
+      List<String> emailIdsToFetch = new ArrayList<>();
+      for (String emailId : emailIds) {
+        EmailMetadata metadata = metadataIndex.get(emailId);
+        if (metadata == null) {
+          emailIdsToFetch.add(emailId);
+        } else {
+          idToMetadata.put(emailId, withLabelNames(metadata, idToLabel));
+        }
+      }
+      if (!idToMetadata.isEmpty()) {
+        logger.info("Found %d of %d emails in the metadata index.", idToMetadata.size(), emailIds.size());
+      }
+      int skippedEmails = 0;
+      if (!emailIdsToFetch.isEmpty()) {
+        logger.info("Getting info about %d emails...", emailIdsToFetch.size());
+        service.batchGetMetadata(emailIdsToFetch, getMetadataCallback(idToLabel, metadata -> {
+          metadataIndex.put(metadata);
+          idToMetadata.put(metadata.gmailId(), metadata);
+        }));
+        metadataIndex.flush();
+        // E.g. emails deleted since they were listed are skipped, but a batch that failed as a whole is an error.
+        List<String> failedIds = emailIdsToFetch.stream().filter(id -> !idToMetadata.containsKey(id))
+            .collect(Collectors.toList());
+        if (failedIds.size() == emailIdsToFetch.size()) {
+          throw new GmailServiceException(
+              new IOException("Failed to get info about all " + failedIds.size() + " emails of the batch."));
+        } else if (!failedIds.isEmpty()) {
+          logger.warn("Skipping %d emails whose info couldn't be got: %s", failedIds.size(), failedIds);
+        }
+        for (String failedId : failedIds) {
+          if (idToIndex.containsKey(failedId)) {
+            staleIds.add(failedId);
+          }
+        }
+        skippedEmails = failedIds.size();
+      }
+      for (String emailId : emailIds) {
+        EmailMetadata metadata = idToMetadata.get(emailId);
+        if (metadata == null) {
+          continue;
+        }
+        Integer index = idToIndex.get(emailId);
+        if (index == null) {
+          searchResults.add(metadata.toEmail());
+        } else {
+          searchResults.set(index, metadata.toEmail());
+        }
+      }
+      return skippedEmails;
+    };
+  }
+
+  private JsonBatchCallback<Message> getMetadataCallback(SortedMap<String, String> idToLabel,
+                                                         Consumer<EmailMetadata> consumer) {
+    return new JsonBatchCallback<>() {
       @Override
-      public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) throws IOException {
-        throw new IOException(googleJsonError.getMessage());
+      public void onFailure(GoogleJsonError googleJsonError, HttpHeaders httpHeaders) {
+        // The email is left out of the results; the worker gives up only if the whole batch fails.
+        logger.warn("Failed to get info about an email: %s", googleJsonError.getMessage());
       }
 
       @Override
@@ -230,18 +497,19 @@ public class LiveModel implements Model {
         String subject = headerMap.get("subject");
         long timestamp = message.getInternalDate();
         List<String> attachmentNames = AttachmentNameExtractor.getAttachmentNames(message);
-        Email email = new Email(emailId, labels, from, to, subject, timestamp, message.getSizeEstimate(),
-            attachmentNames);
-        searchResults.add(email);
+        consumer.accept(new EmailMetadata(emailId, labels, from, to, subject, timestamp, message.getSizeEstimate(),
+            attachmentNames));
       }
     };
+  }
 
-    return new GetEmailMetadataTask(emailIdsToProcess, (startIndexInclusive, endIndexExclusive) -> {
-        logger.info("Getting info about emails with index [%d, %d)...", startIndexInclusive, endIndexExclusive);
-        List<String> emailIds = emailIdsToProcess.subList(startIndexInclusive, endIndexExclusive);
-        service.batchGetMetadata(emailIds, perEmailCallback);
-      }
-    );
+  private static EmailMetadata withLabelNames(EmailMetadata metadata, SortedMap<String, String> idToLabel) {
+    // Labels may have been renamed since the metadata was indexed.
+    List<GmailLabel> labels = metadata.labels().stream()
+        .map(label -> new GmailLabel(label.id(), idToLabel.getOrDefault(label.id(), label.name())))
+        .collect(Collectors.toList());
+    return new EmailMetadata(metadata.gmailId(), labels, metadata.from(), metadata.to(), metadata.subject(),
+        metadata.timestamp(), metadata.sizeInBytes(), metadata.attachmentNames());
   }
 
   private List<GmailLabel> getLabelsForIds(SortedMap<String, String> idToLabel, List<String> labelIds) {
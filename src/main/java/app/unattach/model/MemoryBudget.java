@@ -0,0 +1,55 @@
+package app.unattach.model;
+
+/**
+ * Admits emails into processing while their estimated peak heap use fits within a byte budget, so that many small
+ * emails can be processed at once without a few large ones running out of memory.
+ *
+ * Emails are admitted in order: one that doesn't fit holds back those after it, so that a large email isn't starved by
+ * a stream of small ones. An email larger than the whole budget is admitted once nothing else is in flight, which gives
+ * it all the headroom there is.
+ */
+class MemoryBudget {
+  // Headers, text and HTML bodies, decoding buffers and the encoded upload can all be on the heap at once.
+  private static final int PEAK_HEAP_PER_EMAIL_BYTE = 3;
+
+  private final long budget;
+  private long used;
+
+  MemoryBudget(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * @param percent The share of the maximum heap size that in-flight emails may use.
+   */
+  static MemoryBudget ofMaxMemory(int percent) {
+    return new MemoryBudget(Runtime.getRuntime().maxMemory() / 100 * percent);
+  }
+
+  static long estimatePeakHeap(Email email) {
+    return Math.max(1, (long) email.getSizeInBytes()) * PEAK_HEAP_PER_EMAIL_BYTE;
+  }
+
+  /**
+   * @return Whether the bytes were admitted. They always are if nothing else is.
+   */
+  synchronized boolean tryAcquire(long bytes) {
+    if (used > 0 && used + bytes > budget) {
+      return false;
+    }
+    used += bytes;
+    return true;
+  }
+
+  synchronized void release(long bytes) {
+    used -= bytes;
+  }
+
+  synchronized long getUsed() {
+    return used;
+  }
+
+  long getBudget() {
+    return budget;
+  }
+}
@@ -0,0 +1,113 @@
+package app.unattach.model;
+
+import app.unattach.model.service.GmailService;
+import app.unattach.model.service.GmailServiceException;
+import app.unattach.model.service.MessageIdPage;
+import app.unattach.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Lists the IDs of emails matching a query on a background thread, one page at a time, while earlier IDs are already
+ * being consumed. Listing pauses while too many IDs are waiting to be consumed, so the full result list never has to
+ * be held in memory at once.
+ */
+class MessageIdStream implements GetEmailMetadataTask.EmailIdSource {
+  private static final Logger logger = Logger.get();
+  private static final int MAX_BUFFERED_IDS = 5000;
+
+  private final GmailService service;
+  private final String query;
+  private final Deque<String> buffer = new ArrayDeque<>();
+  private int numberOfEmailIds;
+  private boolean complete;
+  private boolean closed;
+  private GmailServiceException failure;
+
+  private MessageIdStream(GmailService service, String query) {
+    this.service = service;
+    this.query = query;
+  }
+
+  static MessageIdStream start(GmailService service, String query) {
+    MessageIdStream stream = new MessageIdStream(service, query);
+    Thread thread = new Thread(stream::list, "search");
+    thread.setDaemon(true);
+    thread.start();
+    return stream;
+  }
+
+  private void list() {
+    try {
+      String pageToken = null;
+      do {
+        MessageIdPage page = service.search(query, pageToken);
+        synchronized (this) {
+          while (!closed && buffer.size() >= MAX_BUFFERED_IDS) {
+            wait();
+          }
+          if (closed) {
+            return;
+          }
+          buffer.addAll(page.messageIds());
+          numberOfEmailIds += page.messageIds().size();
+          notifyAll();
+        }
+        pageToken = page.nextPageToken();
+      } while (pageToken != null);
+      logger.info("Found %d results.", getNumberOfEmailIds());
+    } catch (GmailServiceException e) {
+      synchronized (this) {
+        failure = e;
+      }
+    } catch (InterruptedException e) {
+      logger.warn("Searching was interrupted.");
+    } finally {
+      synchronized (this) {
+        complete = true;
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public synchronized List<String> next(int maxCount) throws GmailServiceException, InterruptedException {
+    while (buffer.isEmpty() && !complete) {
+      wait();
+    }
+    if (buffer.isEmpty() && failure != null) {
+      throw failure;
+    }
+    List<String> emailIds = new ArrayList<>(Math.min(maxCount, buffer.size()));
+    while (emailIds.size() < maxCount && !buffer.isEmpty()) {
+      emailIds.add(buffer.poll());
+    }
+    notifyAll();
+    return emailIds;
+  }
+
+  @Override
+  public synchronized boolean isExhausted() {
+    // A failed listing is never exhausted, so that its results are not mistaken for all matching emails.
+    return complete && buffer.isEmpty() && failure == null;
+  }
+
+  @Override
+  public synchronized int getNumberOfEmailIds() {
+    return numberOfEmailIds;
+  }
+
+  @Override
+  public synchronized boolean isComplete() {
+    return complete;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+}
@@ -0,0 +1,221 @@
+package app.unattach.model;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * The metadata of emails found by searches, keyed by Gmail ID, together with the results of the last search.
+ *
+ * Entries are valid as of the mailbox history ID, so entries of emails that changed since then have to be removed
+ * before the index is used. Every change is described by a JSON record, which subclasses can persist and replay.
+ */
+public class MetadataIndex {
+  private static final String TYPE = "type";
+  private static final String RESET = "reset";
+  private static final String HISTORY = "history";
+  private static final String PUT = "put";
+  private static final String REMOVE = "remove";
+  private static final String RESULTS = "results";
+  private static final String FOUND = "found";
+
+  private final Map<String, EmailMetadata> idToMetadata = new HashMap<>();
+  private String emailAddress;
+  private String historyId;
+  private String lastQuery;
+  private List<String> lastResultIds = List.of();
+  private boolean lastSearchComplete;
+
+  synchronized String getEmailAddress() {
+    return emailAddress;
+  }
+
+  synchronized String getHistoryId() {
+    return historyId;
+  }
+
+  /**
+   * @return The query of the last search, or null if the mailbox changed since then.
+   */
+  synchronized String getLastQuery() {
+    return lastQuery;
+  }
+
+  synchronized EmailMetadata get(String gmailId) {
+    return idToMetadata.get(gmailId);
+  }
+
+  /**
+   * @return Whether the last search found all matching emails, rather than being stopped or interrupted by a crash.
+   */
+  synchronized boolean isLastSearchComplete() {
+    return lastSearchComplete;
+  }
+
+  /**
+   * @return The metadata of the emails found by the last search, in the order they were found.
+   */
+  synchronized List<EmailMetadata> getLastResults() {
+    List<EmailMetadata> results = new ArrayList<>(lastResultIds.size());
+    for (String gmailId : lastResultIds) {
+      EmailMetadata metadata = idToMetadata.get(gmailId);
+      if (metadata != null) {
+        results.add(metadata);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Removes everything from the index, and starts a new index for the given account.
+   */
+  synchronized void reset(String emailAddress) {
+    record(new JSONObject().put(TYPE, RESET).put("emailAddress", emailAddress));
+  }
+
+  synchronized void setHistoryId(String historyId) {
+    record(new JSONObject().put(TYPE, HISTORY).put("historyId", historyId));
+  }
+
+  /**
+   * @param complete Whether these are all the emails matching the query. Emails found later can be added with
+   *                 {@link #addLastResults(List)}, so that a search can be resumed after it was stopped.
+   */
+  synchronized void setLastResults(String query, List<String> gmailIds, boolean complete) {
+    record(getResultsRecord(query, gmailIds, complete));
+  }
+
+  synchronized void addLastResults(List<String> gmailIds) {
+    record(new JSONObject().put(TYPE, FOUND).put("ids", new JSONArray(gmailIds)));
+  }
+
+  synchronized void put(EmailMetadata metadata) {
+    record(toJson(metadata).put(TYPE, PUT));
+  }
+
+  synchronized void removeAll(Collection<String> gmailIds) {
+    List<String> indexedIds = gmailIds.stream().filter(idToMetadata::containsKey).collect(Collectors.toList());
+    if (!indexedIds.isEmpty()) {
+      record(new JSONObject().put(TYPE, REMOVE).put("ids", new JSONArray(indexedIds)));
+    }
+  }
+
+  /**
+   * Makes sure that all changes so far are persisted.
+   */
+  public void flush() {}
+
+  private void record(JSONObject record) {
+    apply(record);
+    append(record);
+  }
+
+  /**
+   * Called with each change, after it has been applied to the index.
+   */
+  protected void append(JSONObject record) {}
+
+  protected synchronized void apply(JSONObject record) {
+    switch (record.getString(TYPE)) {
+      case RESET -> {
+        idToMetadata.clear();
+        emailAddress = record.getString("emailAddress");
+        historyId = null;
+        lastQuery = null;
+        lastResultIds = List.of();
+        lastSearchComplete = false;
+      }
+      case HISTORY -> {
+        String newHistoryId = record.getString("historyId");
+        // The last results are only kept while they are up to date.
+        if (!newHistoryId.equals(historyId)) {
+          lastQuery = null;
+          lastResultIds = List.of();
+          lastSearchComplete = false;
+        }
+        historyId = newHistoryId;
+      }
+      case PUT -> {
+        EmailMetadata metadata = fromJson(record);
+        idToMetadata.put(metadata.gmailId(), metadata);
+      }
+      case REMOVE -> toStrings(record.getJSONArray("ids")).forEach(idToMetadata::remove);
+      case RESULTS -> {
+        lastQuery = record.getString("query");
+        lastResultIds = toStrings(record.getJSONArray("ids"));
+        lastSearchComplete = record.getBoolean("complete");
+      }
+      case FOUND -> {
+        if (lastQuery != null) {
+          lastResultIds.addAll(toStrings(record.getJSONArray("ids")));
+        }
+      }
+      default -> throw new IllegalArgumentException("Unknown record type: " + record.getString(TYPE));
+    }
+  }
+
+  /**
+   * @return The fewest records that recreate the current index when applied in order.
+   */
+  protected synchronized List<JSONObject> snapshot() {
+    List<JSONObject> records = new ArrayList<>(idToMetadata.size() + 3);
+    if (emailAddress == null) {
+      return records;
+    }
+    records.add(new JSONObject().put(TYPE, RESET).put("emailAddress", emailAddress));
+    if (historyId != null) {
+      records.add(new JSONObject().put(TYPE, HISTORY).put("historyId", historyId));
+    }
+    for (EmailMetadata metadata : idToMetadata.values()) {
+      records.add(toJson(metadata).put(TYPE, PUT));
+    }
+    if (lastQuery != null) {
+      records.add(getResultsRecord(lastQuery, lastResultIds, lastSearchComplete));
+    }
+    return records;
+  }
+
+  private static JSONObject getResultsRecord(String query, List<String> gmailIds, boolean complete) {
+    return new JSONObject().put(TYPE, RESULTS).put("query", query).put("ids", new JSONArray(gmailIds))
+        .put("complete", complete);
+  }
+
+  private static JSONObject toJson(EmailMetadata metadata) {
+    JSONArray labels = new JSONArray();
+    for (GmailLabel label : metadata.labels()) {
+      labels.put(new JSONObject().put("id", label.id()).put("name", label.name()));
+    }
+    return new JSONObject()
+        .put("id", metadata.gmailId())
+        .put("labels", labels)
+        .put("from", metadata.from())
+        .put("to", metadata.to())
+        .put("subject", metadata.subject())
+        .put("timestamp", metadata.timestamp())
+        .put("size", metadata.sizeInBytes())
+        .put("attachments", new JSONArray(metadata.attachmentNames()));
+  }
+
+  private static EmailMetadata fromJson(JSONObject json) {
+    JSONArray labelsJson = json.getJSONArray("labels");
+    List<GmailLabel> labels = new ArrayList<>(labelsJson.length());
+    for (int i = 0; i < labelsJson.length(); ++i) {
+      JSONObject label = labelsJson.getJSONObject(i);
+      labels.add(new GmailLabel(label.getString("id"), label.getString("name")));
+    }
+    // Missing headers are not written, since JSONObject drops null values.
+    return new EmailMetadata(json.getString("id"), labels, json.optString("from", null), json.optString("to", null),
+        json.optString("subject", null), json.getLong("timestamp"), json.getInt("size"),
+        toStrings(json.getJSONArray("attachments")));
+  }
+
+  private static List<String> toStrings(JSONArray array) {
+    List<String> strings = new ArrayList<>(array.length());
+    for (int i = 0; i < array.length(); ++i) {
+      strings.add(array.getString(i));
+    }
+    return strings;
+  }
+}
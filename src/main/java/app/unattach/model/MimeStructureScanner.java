@@ -0,0 +1,320 @@
+package app.unattach.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+import javax.mail.internet.ContentDisposition;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.ParseException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Indexes the parts of a raw email in one pass over its bytes, without decoding any body or building the javax.mail
+ * object graph. Only the headers that decide whether a part is an attachment are kept.
+ *
+ * The scan follows the boundaries of multiparts the way javax.mail does, leniently. Anything it can't index with
+ * confidence, such as malformed headers or multiparts without a boundary, makes the structure incomplete, in which case
+ * the email should be parsed in full.
+ */
+class MimeStructureScanner {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Longer lines are only kept in part; no boundary or header we look at is that long.
+  private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+  /**
+   * @param parent The index of the multipart the part is in, or -1 for the email itself.
+   * @param offset Where the headers of the part start.
+   * @param bodyOffset Where the body of the part starts.
+   * @param end Where the part ends, i.e. where the line with the next boundary starts.
+   * @param mimeType The lower-case base type, e.g. "multipart/related".
+   * @param disposition The disposition without parameters, or null if there is none.
+   * @param filename The raw, undecoded filename, or null if there is none.
+   */
+  record RawPart(int parent, long offset, long bodyOffset, long end, String mimeType, String disposition,
+                 String filename) {}
+
+  /**
+   * @param parts The parts in the order they appear, so each multipart comes before its parts.
+   * @param complete Whether every part could be indexed.
+   */
+  record Structure(List<RawPart> parts, boolean complete) {
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (RawPart part : parts) {
+        int depth = 0;
+        for (int parent = part.parent(); parent != -1; parent = parts.get(parent).parent()) {
+          ++depth;
+        }
+        if (!sb.isEmpty()) {
+          sb.append("\n");
+        }
+        sb.append(StringUtils.repeat("|   ", depth)).append(part.mimeType())
+            .append(" (disposition: ").append(part.disposition()).append(")");
+      }
+      if (!complete) {
+        sb.append("\n(incomplete)");
+      }
+      return sb.toString();
+    }
+  }
+
+  private record Multipart(int index, byte[] delimiter) {}
+
+  private static final class PartBuilder {
+    private final int parent;
+    private final long offset;
+    private long bodyOffset;
+    private long end = -1;
+    private String mimeType = "text/plain";
+    private String disposition;
+    private String filename;
+
+    private PartBuilder(int parent, long offset) {
+      this.parent = parent;
+      this.offset = offset;
+    }
+  }
+
+  private final InputStream inputStream;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+  private int bufferPosition;
+  private int bufferLength;
+  private final byte[] line = new byte[MAX_LINE_LENGTH];
+  private int lineLength;
+  private boolean lineTruncated;
+  private long lineStart;
+  private long position;
+  private final List<PartBuilder> parts = new ArrayList<>();
+  // The multiparts whose closing delimiter hasn't been read yet, innermost last.
+  private final Deque<Multipart> openMultiparts = new ArrayDeque<>();
+  private boolean complete = true;
+
+  private MimeStructureScanner(InputStream inputStream) {
+    this.inputStream = inputStream;
+  }
+
+  static Structure scan(InputStream inputStream) throws IOException {
+    MimeStructureScanner scanner = new MimeStructureScanner(inputStream);
+    scanner.scan();
+    List<RawPart> rawParts = new ArrayList<>(scanner.parts.size());
+    for (PartBuilder part : scanner.parts) {
+      long end = part.end == -1 ? scanner.position : part.end;
+      rawParts.add(new RawPart(part.parent, part.offset, part.bodyOffset, end, part.mimeType, part.disposition,
+          part.filename));
+    }
+    return new Structure(rawParts, scanner.complete);
+  }
+
+  private void scan() throws IOException {
+    // The part whose body is being read, whether a leaf, or a multipart before its first or after its last delimiter.
+    int current = startPart(-1);
+    while (readLine()) {
+      int depth = findDelimiter();
+      if (depth == -1) {
+        continue;
+      }
+      // A delimiter of an outer multipart implicitly closes the inner ones.
+      while (openMultiparts.size() > depth + 1) {
+        endPart(openMultiparts.removeLast().index());
+      }
+      Multipart multipart = openMultiparts.getLast();
+      if (current != multipart.index()) {
+        endPart(current);
+      }
+      if (isCloseDelimiter(multipart.delimiter())) {
+        openMultiparts.removeLast();
+        current = multipart.index();
+      } else {
+        current = startPart(multipart.index());
+      }
+    }
+    if (!openMultiparts.isEmpty()) {
+      // The email was cut short.
+      complete = false;
+    }
+  }
+
+  /**
+   * Reads the headers of a part that starts at the current position.
+   *
+   * @return The index of the part.
+   */
+  private int startPart(int parent) throws IOException {
+    PartBuilder part = new PartBuilder(parent, position);
+    int index = parts.size();
+    parts.add(part);
+    String[] values = new String[2];
+    StringBuilder header = null;
+    boolean truncated = false;
+    while (readLine() && lineLength > 0) {
+      boolean continuation = line[0] == ' ' || line[0] == '\t';
+      if (!continuation) {
+        addHeader(values, header, truncated);
+        header = new StringBuilder();
+        truncated = false;
+      } else if (header == null) {
+        continue;
+      }
+      header.append(new String(line, 0, lineLength, StandardCharsets.ISO_8859_1));
+      truncated |= lineTruncated;
+    }
+    addHeader(values, header, truncated);
+    part.bodyOffset = position;
+    parseHeaders(part, index, values[0], values[1]);
+    if (openMultiparts.isEmpty()) {
+      // There are no more boundaries to look for.
+      skipRest();
+    }
+    return index;
+  }
+
+  /**
+   * Keeps the first Content-Type and Content-Disposition headers, as javax.mail does.
+   */
+  private void addHeader(String[] values, StringBuilder header, boolean truncated) {
+    if (header == null) {
+      return;
+    }
+    String[] names = {"content-type", "content-disposition"};
+    for (int i = 0; i < names.length; ++i) {
+      String value = getValue(header, names[i]);
+      if (value != null && values[i] == null) {
+        values[i] = value;
+        // Too long to be sure what the header says.
+        complete &= !truncated;
+      }
+    }
+  }
+
+  private void parseHeaders(PartBuilder part, int index, String contentType, String contentDisposition) {
+    try {
+      if (contentType != null) {
+        ContentType type = new ContentType(contentType);
+        part.mimeType = type.getBaseType().toLowerCase(Locale.ROOT);
+        part.filename = type.getParameter("name");
+        if (part.mimeType.startsWith("multipart/")) {
+          String boundary = type.getParameter("boundary");
+          if (boundary == null) {
+            complete = false;
+          } else {
+            openMultiparts.addLast(new Multipart(index, ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1)));
+          }
+        }
+      }
+      if (contentDisposition != null) {
+        ContentDisposition disposition = new ContentDisposition(contentDisposition);
+        part.disposition = disposition.getDisposition();
+        String filename = disposition.getParameter("filename");
+        part.filename = filename != null ? filename : part.filename;
+      }
+    } catch (ParseException e) {
+      complete = false;
+    }
+  }
+
+  private static String getValue(StringBuilder header, String name) {
+    int colon = header.indexOf(":");
+    if (colon == -1 || !header.substring(0, colon).trim().equalsIgnoreCase(name)) {
+      return null;
+    }
+    return header.substring(colon + 1).trim();
+  }
+
+  private void skipRest() throws IOException {
+    position += bufferLength - bufferPosition;
+    bufferPosition = bufferLength;
+    long skipped;
+    while ((skipped = inputStream.skip(Long.MAX_VALUE)) > 0) {
+      position += skipped;
+    }
+  }
+
+  private void endPart(int index) {
+    PartBuilder part = parts.get(index);
+    if (part.end == -1) {
+      part.end = lineStart;
+    }
+  }
+
+  /**
+   * @return The depth of the open multipart that the current line is a delimiter of, or -1 if it is none.
+   */
+  private int findDelimiter() {
+    if (lineTruncated || lineLength < 2 || line[0] != '-' || line[1] != '-') {
+      return -1;
+    }
+    int depth = openMultiparts.size() - 1;
+    for (var iterator = openMultiparts.descendingIterator(); iterator.hasNext(); --depth) {
+      byte[] delimiter = iterator.next().delimiter();
+      if (startsWith(delimiter) && isBlank(delimiter.length + (isCloseDelimiter(delimiter) ? 2 : 0))) {
+        return depth;
+      }
+    }
+    return -1;
+  }
+
+  private boolean isCloseDelimiter(byte[] delimiter) {
+    int end = delimiter.length;
+    return lineLength >= end + 2 && line[end] == '-' && line[end + 1] == '-';
+  }
+
+  private boolean startsWith(byte[] prefix) {
+    return lineLength >= prefix.length && Arrays.equals(line, 0, prefix.length, prefix, 0, prefix.length);
+  }
+
+  private boolean isBlank(int from) {
+    for (int i = from; i < lineLength; ++i) {
+      if (line[i] != ' ' && line[i] != '\t') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next line without its line terminator.
+   *
+   * @return Whether there was a line to read.
+   */
+  private boolean readLine() throws IOException {
+    lineStart = position;
+    lineLength = 0;
+    lineTruncated = false;
+    while (true) {
+      if (bufferPosition == bufferLength) {
+        bufferLength = inputStream.read(buffer);
+        bufferPosition = 0;
+        if (bufferLength <= 0) {
+          bufferLength = 0;
+          return position > lineStart;
+        }
+      }
+      int newline = bufferPosition;
+      while (newline < bufferLength && buffer[newline] != '\n') {
+        ++newline;
+      }
+      int count = Math.min(newline - bufferPosition, MAX_LINE_LENGTH - lineLength);
+      lineTruncated |= count < newline - bufferPosition;
+      System.arraycopy(buffer, bufferPosition, line, lineLength, count);
+      lineLength += count;
+      position += newline - bufferPosition;
+      bufferPosition = newline;
+      if (newline < bufferLength) {
+        ++bufferPosition;
+        ++position;
+        if (lineLength > 0 && line[lineLength - 1] == '\r' && !lineTruncated) {
+          --lineLength;
+        }
+        return true;
+      }
+    }
+  }
+}
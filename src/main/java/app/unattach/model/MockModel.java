@@ -1,6 +1,5 @@
 package app.unattach.model;
 
-import app.unattach.controller.LongTask;
 import app.unattach.utils.Logger;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
 
@@ -35,21 +34,30 @@ public class MockModel implements Model {
       String emailId = String.valueOf(i);
       emailIds.add(emailId);
     }
-    return new GetEmailMetadataTask(emailIds, (startIndexInclusive, endIndexExclusive) -> {
-      for (int i = minEmailSizeInBytes / 1000 / 1000; i < maxEmailId; ++i) {
-        if (startIndexInclusive <= i && i < endIndexExclusive) {
-          String emailId = String.valueOf(i);
-          List<GmailLabel> labels =
-              Arrays.asList(new GmailLabel("INBOX", "INBOX"), new GmailLabel("IMPORTANT", "IMPORTANT"));
-          emails.add(new Email(emailId, labels,
-              "john.doe@example.com", "jane.doe@example.com",
-              "Subject " + i, System.currentTimeMillis(),
-              i * (int) Math.pow(2, 20), Collections.singletonList("data.zip")));
-        }
+    return new GetEmailMetadataTask(GetEmailMetadataTask.EmailIdSource.of(emailIds), () -> 5, batch -> {
+      for (String emailId : batch) {
+        int i = Integer.parseInt(emailId);
+        List<GmailLabel> labels =
+            Arrays.asList(new GmailLabel("INBOX", "INBOX"), new GmailLabel("IMPORTANT", "IMPORTANT"));
+        emails.add(new Email(emailId, labels,
+            "john.doe@example.com", "jane.doe@example.com",
+            "Subject " + i, System.currentTimeMillis(),
+            i * (int) Math.pow(2, 20), Collections.singletonList("data.zip")));
       }
+      return 0;
     });
   }
 
+  @Override
+  public GetEmailMetadataTask getSyncTask(String query) {
+    return getSearchTask(query);
+  }
+
+  @Override
+  public String getInterruptedSearchQuery() {
+    return null;
+  }
+
   @Override
   public String getEmailAddress() {
     return "user@mock.com";
@@ -70,14 +78,19 @@ public class MockModel implements Model {
   }
 
   @Override
-  public LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings) {
-    return new ProcessEmailTask(email, e -> {
-      if (random.nextBoolean()) {
-        return new ProcessEmailResult("mock-new-unique-id", Collections.singleton(e.getGmailId()));
-      } else {
-        throw new IOException("Something went wrong.");
-      }
-    });
+  public ProcessEmailsTask getProcessTask(List<Email> emails, ProcessSettings processSettings) {
+    ProcessingPipeline<ProcessEmailJob> pipeline = new ProcessingPipeline<ProcessEmailJob>("mock-process-email")
+        .addStage("process", 2, 2, job -> job.result = processEmail(job.email));
+    return new ProcessEmailsTask(emails, pipeline, MemoryBudget.ofMaxMemory(50),
+        ProcessEmailsTask.PendingWrites.none());
+  }
+
+  private ProcessEmailResult processEmail(Email email) throws IOException {
+    if (random.nextBoolean()) {
+      return new ProcessEmailResult("mock-new-unique-id", Collections.singleton(email.getGmailId()));
+    } else {
+      throw new IOException("Something went wrong.");
+    }
   }
 
   @Override
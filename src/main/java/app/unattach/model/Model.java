@@ -1,6 +1,5 @@
 package app.unattach.model;
 
-import app.unattach.controller.LongTask;
 import app.unattach.model.service.GmailServiceException;
 import app.unattach.model.service.GmailServiceManagerException;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
@@ -14,10 +13,16 @@ public interface Model {
   Config getConfig();
   String getEmailAddress() throws GmailServiceException;
   SortedMap<String, String> getIdToLabel() throws GmailServiceException;
-  LongTask<ProcessEmailResult> getProcessTask(Email email, ProcessSettings processSettings);
+  ProcessEmailsTask getProcessTask(List<Email> emails, ProcessSettings processSettings);
   DefaultArtifactVersion getLatestVersion() throws IOException, InterruptedException;
+  /**
+   * @return The results of the last search. A running search appends to them on its own thread, so other threads read
+   * them while synchronized on the list.
+   */
   List<Email> getSearchResults();
   GetEmailMetadataTask getSearchTask(String query) throws GmailServiceException;
+  GetEmailMetadataTask getSyncTask(String query) throws GmailServiceException;
+  String getInterruptedSearchQuery();
   void signIn() throws GmailServiceManagerException;
   void signOut() throws GmailServiceManagerException;
   void sendToServer(String contentDescription, String userEmail, String stackTraceText, String userText)
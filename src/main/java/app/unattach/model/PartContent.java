@@ -0,0 +1,132 @@
+package app.unattach.model;
+
+import app.unattach.model.attachmentstorage.AttachmentContent;
+
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * The decoded content of a body part, written in large chunks rather than through the small reads of javax.mail's
+ * decoding streams.
+ *
+ * Parts that are not encoded are copied as they are, which for a spooled email lets the operating system transfer them
+ * from file to file. Base64 parts, the usual encoding of attachments, are decoded a chunk at a time. Other encodings,
+ * e.g. quoted-printable, which is rare for attachments, are decoded by javax.mail.
+ */
+class PartContent implements AttachmentContent {
+  private static final int CHUNK_SIZE = 1024 * 1024;
+  private static final Set<String> IDENTITY_ENCODINGS = Set.of("7bit", "8bit", "binary");
+  private static final boolean[] BASE64_ALPHABET = new boolean[256];
+
+  static {
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); ++i) {
+      BASE64_ALPHABET[alphabet.charAt(i)] = true;
+    }
+  }
+
+  private final Part part;
+
+  PartContent(Part part) {
+    this.part = part;
+  }
+
+  @Override
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    try {
+      String encoding = part instanceof MimePart mimePart ? mimePart.getEncoding() : null;
+      encoding = encoding == null ? "7bit" : encoding.toLowerCase();
+      InputStream rawInputStream = getRawInputStream(part);
+      if (rawInputStream != null && IDENTITY_ENCODINGS.contains(encoding)) {
+        try (InputStream inputStream = rawInputStream) {
+          if (inputStream instanceof SpoolInputStream spoolInputStream) {
+            spoolInputStream.transferTo(channel);
+          } else {
+            copy(inputStream, channel);
+          }
+        }
+      } else if (rawInputStream != null && encoding.equals("base64")) {
+        try (InputStream inputStream = rawInputStream) {
+          decodeBase64(inputStream, channel);
+        }
+      } else {
+        if (rawInputStream != null) {
+          rawInputStream.close();
+        }
+        try (InputStream inputStream = part.getInputStream()) {
+          copy(inputStream, channel);
+        }
+      }
+    } catch (MessagingException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static InputStream getRawInputStream(Part part) throws MessagingException {
+    if (part instanceof MimeBodyPart bodyPart) {
+      return bodyPart.getRawInputStream();
+    } else if (part instanceof MimeMessage message) {
+      return message.getRawInputStream();
+    }
+    return null;
+  }
+
+  private static void copy(InputStream inputStream, WritableByteChannel channel) throws IOException {
+    byte[] chunk = new byte[CHUNK_SIZE];
+    int length;
+    while ((length = inputStream.readNBytes(chunk, 0, chunk.length)) > 0) {
+      write(ByteBuffer.wrap(chunk, 0, length), channel);
+    }
+  }
+
+  /**
+   * Decodes leniently, like javax.mail: characters outside the alphabet, such as line breaks, are skipped, and the
+   * content ends at the first padding character.
+   */
+  static void decodeBase64(InputStream inputStream, WritableByteChannel channel) throws IOException {
+    Base64.Decoder decoder = Base64.getDecoder();
+    byte[] chunk = new byte[CHUNK_SIZE];
+    // The characters of the alphabet, including up to 3 carried over from the previous chunk.
+    byte[] encoded = new byte[CHUNK_SIZE + 3];
+    int encodedLength = 0;
+    boolean padded = false;
+    int length;
+    while (!padded && (length = inputStream.readNBytes(chunk, 0, chunk.length)) > 0) {
+      for (int i = 0; i < length; ++i) {
+        int b = chunk[i] & 0xff;
+        if (BASE64_ALPHABET[b]) {
+          encoded[encodedLength++] = (byte) b;
+        } else if (b == '=') {
+          padded = true;
+          break;
+        }
+      }
+      int decodableLength = padded ? encodedLength : encodedLength - encodedLength % 4;
+      if (decodableLength % 4 == 1) {
+        // A single trailing character carries too few bits for a byte.
+        --decodableLength;
+      }
+      write(decoder.decode(ByteBuffer.wrap(encoded, 0, decodableLength)), channel);
+      System.arraycopy(encoded, decodableLength, encoded, 0, encodedLength - decodableLength);
+      encodedLength -= decodableLength;
+    }
+    if (!padded && encodedLength > 1) {
+      write(decoder.decode(ByteBuffer.wrap(encoded, 0, encodedLength)), channel);
+    }
+  }
+
+  private static void write(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package app.unattach.model;
+
+import app.unattach.utils.Logger;
+import com.google.api.services.gmail.model.Message;
+
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The state of one email as it moves through the processing stages. Each stage only reads what earlier stages set,
+ * and drops what later stages no longer need, so that large emails don't stay in memory longer than necessary.
+ *
+ * The raw email is spooled to a file, which backs its MIME messages until the job is closed.
+ */
+class ProcessEmailJob implements AutoCloseable {
+  private static final Logger logger = Logger.get();
+
+  final Email email;
+  // The heap admitted for the email, released when it leaves the pipeline.
+  long admittedBytes;
+  Message message;
+  File rawFile;
+  SpoolInputStream rawStream;
+  MimeMessage originalMimeMessage;
+  EmailProcessor.Result processorResult;
+  // Attachments and backups being saved in the background, which read from the spooled email.
+  final List<CompletableFuture<Void>> saves = new ArrayList<>();
+  ProcessEmailResult result;
+
+  ProcessEmailJob(Email email) {
+    this.email = email;
+  }
+
+  /**
+   * Closes and deletes the spooled raw email once nothing is being saved from it, whether or not the job succeeded.
+   */
+  @Override
+  public void close() {
+    // Failed saves were already reported by the stage that waited for them.
+    CompletableFuture.allOf(saves.toArray(CompletableFuture[]::new)).exceptionally(t -> null).join();
+    if (rawStream != null) {
+      try {
+        rawStream.close();
+      } catch (IOException e) {
+        logger.warn("Failed to close the spooled email: %s", e.getMessage());
+      }
+      rawStream = null;
+    }
+    if (rawFile != null) {
+      if (!rawFile.delete()) {
+        logger.warn("Failed to delete the temporary file %s.", rawFile);
+      }
+      rawFile = null;
+    }
+  }
+}
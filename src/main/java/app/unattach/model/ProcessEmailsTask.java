@@ -0,0 +1,202 @@
+package app.unattach.model;
+
+import app.unattach.controller.LongTask;
+import app.unattach.controller.LongTaskException;
+import app.unattach.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Processes several emails at once by feeding them through a staged pipeline.
+ *
+ * Each step waits for the next email to finish (in completion order, not list order) and reports its outcome. An email
+ * that went through the pipeline is only reported once the writes queued for it, e.g. the removal of its original,
+ * have been sent, so that a failed write is reported as a failure of its email. Emails are only started while their
+ * estimated heap use fits in the memory budget. Staying within the Gmail quota is left to
+ * the service, which admits every call through a shared quota scheduler.
+ */
+public class ProcessEmailsTask implements LongTask<ProcessEmailsTask.Result>, AutoCloseable {
+  private static final Logger logger = Logger.get();
+
+  /**
+   * Writes queued by the pipeline for emails, keyed by the Gmail IDs of the emails.
+   */
+  interface PendingWrites {
+    /**
+     * Sends the queued writes that are due.
+     */
+    void flushIfDue();
+
+    /**
+     * Sends all queued writes.
+     */
+    void flush();
+
+    /**
+     * @return Whether all writes queued for the email have been sent, or failed.
+     */
+    boolean isSettled(String emailId);
+
+    /**
+     * @return The failure of a write for the email, or null if there was none.
+     */
+    Throwable takeFailure(String emailId);
+
+    static PendingWrites none() {
+      return new PendingWrites() {
+        @Override
+        public void flushIfDue() {}
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public boolean isSettled(String emailId) {
+          return true;
+        }
+
+        @Override
+        public Throwable takeFailure(String emailId) {
+          return null;
+        }
+      };
+    }
+  }
+
+  private record AwaitingWrites(String emailId, Result result) {}
+
+  public static record Result(Email email, ProcessEmailResult processEmailResult, Throwable throwable) {
+    public boolean successful() {
+      return throwable == null;
+    }
+  }
+
+  private final List<Email> emails;
+  private final ProcessingPipeline<ProcessEmailJob> pipeline;
+  private final MemoryBudget memoryBudget;
+  private final PendingWrites pendingWrites;
+  private int nextEmailIndex;
+  private int inFlight;
+  // Emails that went through the pipeline, in completion order, whose writes haven't all been sent yet.
+  private final List<AwaitingWrites> awaitingWrites = new ArrayList<>();
+  private volatile boolean stopped;
+
+  ProcessEmailsTask(List<Email> emails, ProcessingPipeline<ProcessEmailJob> pipeline, MemoryBudget memoryBudget,
+                    PendingWrites pendingWrites) {
+    this.emails = emails;
+    this.pipeline = pipeline;
+    this.memoryBudget = memoryBudget;
+    this.pendingWrites = pendingWrites;
+  }
+
+  @Override
+  public int getNumberOfSteps() {
+    return emails.size();
+  }
+
+  @Override
+  public boolean hasMoreSteps() {
+    return inFlight > 0 || !awaitingWrites.isEmpty() || (!stopped && nextEmailIndex < emails.size());
+  }
+
+  @Override
+  public Result takeStep() throws LongTaskException {
+    try {
+      while (true) {
+        pendingWrites.flushIfDue();
+        Result settled = takeSettled();
+        if (settled != null) {
+          return settled;
+        }
+        startEmails();
+        if (inFlight == 0) {
+          // Only writes are left, so there is nothing to wait for before sending them.
+          pendingWrites.flush();
+          continue;
+        }
+        ProcessingPipeline.Completed<ProcessEmailJob> completed = pipeline.take();
+        --inFlight;
+        completed.item().close();
+        memoryBudget.release(completed.item().admittedBytes);
+        logger.info("Pipeline occupancy: %s, memory budget: %d/%d bytes", getStageOccupancy(), memoryBudget.getUsed(),
+            memoryBudget.getBudget());
+        Email email = completed.item().email;
+        if (completed.throwable() != null) {
+          // The email may have queued writes before it failed; they are sent, but its failure is reported now.
+          pendingWrites.takeFailure(email.getGmailId());
+          return new Result(email, null, completed.throwable());
+        }
+        awaitingWrites.add(new AwaitingWrites(email.getGmailId(), new Result(email, completed.item().result, null)));
+      }
+    } catch (InterruptedException e) {
+      throw new LongTaskException(e);
+    }
+  }
+
+  private void startEmails() {
+    while (!stopped && nextEmailIndex < emails.size()) {
+      Email email = emails.get(nextEmailIndex);
+      ProcessEmailJob job = new ProcessEmailJob(email);
+      job.admittedBytes = MemoryBudget.estimatePeakHeap(email);
+      if (!memoryBudget.tryAcquire(job.admittedBytes)) {
+        break;
+      }
+      if (!pipeline.offer(job)) {
+        memoryBudget.release(job.admittedBytes);
+        break;
+      }
+      logger.info("Processing email with subject '%s'...", email.getSubject());
+      ++nextEmailIndex;
+      ++inFlight;
+    }
+  }
+
+  /**
+   * @return The first email whose writes have all been sent, as processed, or as failed if a write failed.
+   */
+  private Result takeSettled() {
+    for (Iterator<AwaitingWrites> it = awaitingWrites.iterator(); it.hasNext(); ) {
+      AwaitingWrites awaiting = it.next();
+      if (!pendingWrites.isSettled(awaiting.emailId())) {
+        continue;
+      }
+      it.remove();
+      Email email = awaiting.result().email();
+      Throwable failure = pendingWrites.takeFailure(awaiting.emailId());
+      if (failure != null) {
+        return new Result(email, null, failure);
+      }
+      email.setStatus(EmailStatus.PROCESSED);
+      return awaiting.result();
+    }
+    return null;
+  }
+
+  /**
+   * @return How busy each stage is, which shows whether the network, the CPU or the disk is the bottleneck.
+   */
+  public List<ProcessingPipeline.StageOccupancy> getStageOccupancy() {
+    return pipeline.getOccupancy();
+  }
+
+  /**
+   * Stops starting new emails. Emails already in flight are still completed and reported by subsequent steps.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  /**
+   * Sends any label changes and removals that are still queued, and stops the pipeline.
+   */
+  @Override
+  public void close() {
+    try {
+      pendingWrites.flush();
+    } finally {
+      pipeline.close();
+    }
+  }
+}
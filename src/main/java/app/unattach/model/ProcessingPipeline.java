@@ -0,0 +1,187 @@
+package app.unattach.model;
+
+import app.unattach.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chain of stages, each with its own worker threads and a bounded input queue.
+ *
+ * A worker hands its item to the next stage with a blocking put, so a slow stage fills its queue and stalls the stages
+ * before it (back-pressure) instead of letting work pile up in memory. An item that fails in any stage skips the
+ * remaining stages and is reported as completed with its failure.
+ *
+ * Closing the pipeline closes every item still in it, whether queued, being worked on, or completed but not taken, so
+ * that what they hold, e.g. temporary files, is released.
+ */
+public class ProcessingPipeline<T extends AutoCloseable> implements AutoCloseable {
+  private static final Logger logger = Logger.get();
+
+  interface StageFunction<T> {
+    void apply(T item) throws Exception;
+  }
+
+  public static record Completed<T>(T item, Throwable throwable) {}
+
+  public static record StageOccupancy(String name, int busyWorkers, int workers, int queued, int queueCapacity) {
+    @Override
+    public String toString() {
+      return String.format("%s: %d/%d busy, %d/%d queued", name, busyWorkers, workers, queued, queueCapacity);
+    }
+  }
+
+  private final List<Stage> stages = new ArrayList<>();
+  private final BlockingQueue<Completed<T>> completed = new LinkedBlockingQueue<>();
+  private final List<Thread> threads = new ArrayList<>();
+  private final String name;
+  private volatile boolean closed;
+
+  ProcessingPipeline(String name) {
+    this.name = name;
+  }
+
+  ProcessingPipeline<T> addStage(String stageName, int workers, int queueCapacity, StageFunction<T> function) {
+    Stage stage = new Stage(stageName, workers, queueCapacity, function, stages.size());
+    stages.add(stage);
+    for (int i = 0; i < workers; ++i) {
+      Thread thread = new Thread(stage::work, name + "-" + stageName + "-" + (i + 1));
+      thread.setDaemon(true);
+      threads.add(thread);
+      thread.start();
+    }
+    return this;
+  }
+
+  /**
+   * @return Whether the item was accepted. It isn't if the first stage's queue is full.
+   */
+  boolean offer(T item) {
+    return stages.get(0).queue.offer(item);
+  }
+
+  /**
+   * Waits for the next item to leave the pipeline, whether it went through all stages or failed.
+   */
+  Completed<T> take() throws InterruptedException {
+    return completed.take();
+  }
+
+  List<StageOccupancy> getOccupancy() {
+    List<StageOccupancy> occupancy = new ArrayList<>(stages.size());
+    for (Stage stage : stages) {
+      occupancy.add(new StageOccupancy(stage.name, stage.busyWorkers.get(), stage.workers, stage.queue.size(),
+          stage.queueCapacity));
+    }
+    return occupancy;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    threads.forEach(Thread::interrupt);
+    for (Stage stage : stages) {
+      drain(stage.queue);
+    }
+    drainCompleted();
+  }
+
+  private void drain(BlockingQueue<T> queue) {
+    T item;
+    while ((item = queue.poll()) != null) {
+      closeItem(item);
+    }
+  }
+
+  private void drainCompleted() {
+    Completed<T> item;
+    while ((item = completed.poll()) != null) {
+      closeItem(item.item());
+    }
+  }
+
+  private static void closeItem(AutoCloseable item) {
+    try {
+      item.close();
+    } catch (Exception e) {
+      logger.warn("Failed to close an item left in the pipeline: %s", e.getMessage());
+    }
+  }
+
+  private class Stage {
+    private final String name;
+    private final int workers;
+    private final int queueCapacity;
+    private final StageFunction<T> function;
+    private final int index;
+    private final BlockingQueue<T> queue;
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+
+    private Stage(String name, int workers, int queueCapacity, StageFunction<T> function, int index) {
+      this.name = name;
+      this.workers = workers;
+      this.queueCapacity = queueCapacity;
+      this.function = function;
+      this.index = index;
+      queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    private void work() {
+      try {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+          T item = queue.take();
+          Throwable throwable = null;
+          busyWorkers.incrementAndGet();
+          try {
+            function.apply(item);
+          } catch (Throwable t) {
+            throwable = t;
+          } finally {
+            busyWorkers.decrementAndGet();
+          }
+          if (!handOver(item, throwable)) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // The pipeline was closed.
+      }
+    }
+
+    /**
+     * Passes the item to the next stage, or to the completed items. Items that arrive after the pipeline was closed,
+     * or while it is being closed, are closed here.
+     *
+     * @return Whether the pipeline is still open.
+     */
+    private boolean handOver(T item, Throwable throwable) {
+      if (closed) {
+        closeItem(item);
+        return false;
+      }
+      try {
+        if (throwable == null && index + 1 < stages.size()) {
+          BlockingQueue<T> nextQueue = stages.get(index + 1).queue;
+          nextQueue.put(item);
+          if (closed) {
+            drain(nextQueue);
+          }
+        } else {
+          completed.put(new Completed<>(item, throwable));
+          if (closed) {
+            drainCompleted();
+          }
+        }
+        return true;
+      } catch (InterruptedException e) {
+        closeItem(item);
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package app.unattach.model;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+
+import java.util.*;
+
+/**
+ * Counts the emails in the results and adds up their sizes, in total, per label and per sender, together with how many
+ * of them are selected.
+ *
+ * The sums are kept up to date as emails are added, removed and (de)selected, rather than worked out again over all
+ * results, so each change costs the same however many results there are. Emails report their status changes to the
+ * summary, which remembers which emails are selected to tell what changed.
+ */
+public class ResultsSummary implements InvalidationListener {
+  public record Totals(int count, long sizeInBytes, int selectedCount, long selectedSizeInBytes) {}
+
+  private static class Sums {
+    private int count;
+    private long sizeInBytes;
+    private int selectedCount;
+    private long selectedSizeInBytes;
+
+    private void add(Email email, int sign) {
+      count += sign;
+      sizeInBytes += sign * (long) email.getSizeInBytes();
+    }
+
+    private void select(Email email, int sign) {
+      selectedCount += sign;
+      selectedSizeInBytes += sign * (long) email.getSizeInBytes();
+    }
+
+    private Totals toTotals() {
+      return new Totals(count, sizeInBytes, selectedCount, selectedSizeInBytes);
+    }
+  }
+
+  private final Runnable onChange;
+  private final Sums sums = new Sums();
+  private final Map<String, Sums> labelToSums = new HashMap<>();
+  private final Map<String, Sums> senderToSums = new HashMap<>();
+  private final Set<Email> selectedEmails = new HashSet<>();
+
+  /**
+   * @param onChange Run after every change, on the thread that made it.
+   */
+  public ResultsSummary(Runnable onChange) {
+    this.onChange = onChange;
+  }
+
+  public void add(Email email) {
+    synchronized (this) {
+      update(email, 1);
+      if (email.isSelected()) {
+        select(email, 1);
+      }
+    }
+    email.addListener(this);
+    onChange.run();
+  }
+
+  public void remove(Email email) {
+    email.removeListener(this);
+    synchronized (this) {
+      if (selectedEmails.contains(email)) {
+        select(email, -1);
+      }
+      update(email, -1);
+    }
+    onChange.run();
+  }
+
+  /**
+   * Called when the status of an email changes.
+   */
+  @Override
+  public void invalidated(Observable observable) {
+    Email email = (Email) observable;
+    synchronized (this) {
+      boolean selected = email.isSelected();
+      if (selected == selectedEmails.contains(email)) {
+        return;
+      }
+      select(email, selected ? 1 : -1);
+    }
+    onChange.run();
+  }
+
+  public synchronized Totals getTotals() {
+    return sums.toTotals();
+  }
+
+  /**
+   * @return The totals of each label by name, largest first.
+   */
+  public synchronized Map<String, Totals> getTotalsByLabel() {
+    return toSortedTotals(labelToSums);
+  }
+
+  /**
+   * @return The totals of each sender, largest first.
+   */
+  public synchronized Map<String, Totals> getTotalsBySender() {
+    return toSortedTotals(senderToSums);
+  }
+
+  private void update(Email email, int sign) {
+    sums.add(email, sign);
+    for (GmailLabel label : email.getLabels()) {
+      add(labelToSums, label.name(), email, sign);
+    }
+    add(senderToSums, email.getFromEmail(), email, sign);
+  }
+
+  private void select(Email email, int sign) {
+    if (sign > 0) {
+      selectedEmails.add(email);
+    } else {
+      selectedEmails.remove(email);
+    }
+    sums.select(email, sign);
+    for (GmailLabel label : email.getLabels()) {
+      labelToSums.get(label.name()).select(email, sign);
+    }
+    senderToSums.get(email.getFromEmail()).select(email, sign);
+  }
+
+  private static void add(Map<String, Sums> keyToSums, String key, Email email, int sign) {
+    Sums keySums = keyToSums.computeIfAbsent(key, k -> new Sums());
+    keySums.add(email, sign);
+    if (keySums.count == 0) {
+      keyToSums.remove(key);
+    }
+  }
+
+  private static Map<String, Totals> toSortedTotals(Map<String, Sums> keyToSums) {
+    List<Map.Entry<String, Sums>> entries = new ArrayList<>(keyToSums.entrySet());
+    entries.sort(Comparator.comparingLong((Map.Entry<String, Sums> entry) -> entry.getValue().sizeInBytes).reversed());
+    Map<String, Totals> keyToTotals = new LinkedHashMap<>();
+    for (Map.Entry<String, Sums> entry : entries) {
+      keyToTotals.put(entry.getKey(), entry.getValue().toTotals());
+    }
+    return keyToTotals;
+  }
+}
@@ -0,0 +1,173 @@
+package app.unattach.model;
+
+import javax.mail.internet.SharedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+/**
+ * Reads an email spooled to a file. Like {@link javax.mail.util.SharedFileInputStream}, it lets the body parts of a
+ * parsed message share the file rather than copy their contents, but it also knows where in the file each of them is,
+ * so that their contents can be transferred to another channel without passing through the heap.
+ *
+ * All streams of a file read from one channel with positional reads. Closing the stream that opened the file closes it
+ * for all of them.
+ */
+public class SpoolInputStream extends InputStream implements SharedInputStream {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel channel;
+  private final boolean owner;
+  private final long start;
+  private final long end;
+  private long position;
+  private long markedPosition;
+  private byte[] buffer;
+  private long bufferStart;
+  private int bufferLength;
+
+  private SpoolInputStream(FileChannel channel, boolean owner, long start, long end) {
+    this.channel = channel;
+    this.owner = owner;
+    this.start = start;
+    this.end = end;
+    position = start;
+    markedPosition = start;
+  }
+
+  public static SpoolInputStream open(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    return new SpoolInputStream(channel, true, 0, channel.size());
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position >= end) {
+      return -1;
+    }
+    if (!isBuffered()) {
+      fill();
+    }
+    return buffer[(int) (position++ - bufferStart)] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    Objects.checkFromIndexSize(offset, length, bytes.length);
+    if (length == 0) {
+      return 0;
+    }
+    if (position >= end) {
+      return -1;
+    }
+    length = (int) Math.min(length, end - position);
+    if (!isBuffered()) {
+      if (length >= BUFFER_SIZE) {
+        // Large reads go straight into the caller's array.
+        int count = channel.read(ByteBuffer.wrap(bytes, offset, length), position);
+        if (count <= 0) {
+          throw new EOFException("The spooled email is shorter than expected.");
+        }
+        position += count;
+        return count;
+      }
+      fill();
+    }
+    int count = (int) Math.min(length, bufferStart + bufferLength - position);
+    System.arraycopy(buffer, (int) (position - bufferStart), bytes, offset, count);
+    position += count;
+    return count;
+  }
+
+  /**
+   * Transfers the rest of this stream to the given channel, which the operating system can do without copying if the
+   * channel is a file.
+   *
+   * @return The number of bytes transferred.
+   */
+  public long transferTo(WritableByteChannel target) throws IOException {
+    long transferred = 0;
+    while (position < end) {
+      long count = channel.transferTo(position, end - position, target);
+      if (count <= 0) {
+        throw new EOFException("The spooled email is shorter than expected.");
+      }
+      position += count;
+      transferred += count;
+    }
+    return transferred;
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.max(0, Math.min(n, end - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, end - position);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readLimit) {
+    markedPosition = position;
+  }
+
+  @Override
+  public void reset() {
+    position = markedPosition;
+  }
+
+  @Override
+  public long getPosition() {
+    return position - start;
+  }
+
+  @Override
+  public InputStream newStream(long start, long end) {
+    if (start < 0 || (end != -1 && end < start)) {
+      throw new IllegalArgumentException("Invalid range: " + start + " to " + end);
+    }
+    return new SpoolInputStream(channel, false, this.start + start, end == -1 ? this.end : this.start + end);
+  }
+
+  @Override
+  public void close() throws IOException {
+    buffer = null;
+    if (owner) {
+      channel.close();
+    }
+  }
+
+  private boolean isBuffered() {
+    return buffer != null && position >= bufferStart && position < bufferStart + bufferLength;
+  }
+
+  private void fill() throws IOException {
+    if (buffer == null) {
+      buffer = new byte[(int) Math.min(BUFFER_SIZE, end - start)];
+    }
+    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+    while (byteBuffer.hasRemaining() && channel.read(byteBuffer, position + byteBuffer.position()) >= 0) {
+      // Keep reading until the buffer is full or the file ends.
+    }
+    bufferStart = position;
+    bufferLength = byteBuffer.position();
+    if (bufferLength == 0) {
+      throw new EOFException("The spooled email is shorter than expected.");
+    }
+  }
+}
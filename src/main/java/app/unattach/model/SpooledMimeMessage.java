@@ -0,0 +1,189 @@
+package app.unattach.model;
+
+import app.unattach.utils.MimeMessagePrettyPrinter;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A message parsed from a spooled email, which is written by splicing rather than by re-encoding every part.
+ *
+ * Parts that were not marked as changed are copied byte for byte from the spooled file, headers as they are now, and
+ * content as it was. Only the changed parts, and the multiparts that contain them, are regenerated. This keeps
+ * untouched bodies exactly as the sender encoded them, and makes writing cost roughly what was changed rather than the
+ * size of the email.
+ */
+public class SpooledMimeMessage extends MimeMessage {
+  private static final byte[] CRLF = {'\r', '\n'};
+
+  // Where in the spooled file the content of each part is. Recorded right after parsing, since saving changes makes
+  // multiparts drop their streams.
+  private final Map<Part, SpoolInputStream> partToRawContent = new IdentityHashMap<>();
+  // The parts of each multipart as parsed, so that added or removed parts are noticed even if not marked.
+  private final Map<Part, List<Part>> partToOriginalChildren = new IdentityHashMap<>();
+  private final Set<Part> changedParts = Collections.newSetFromMap(new IdentityHashMap<>());
+
+  private SpooledMimeMessage(Session session, InputStream inputStream) throws MessagingException {
+    super(session, inputStream);
+  }
+
+  static SpooledMimeMessage parse(SpoolInputStream source) throws MessagingException, IOException {
+    try (InputStream inputStream = source.newStream(0, -1)) {
+      SpooledMimeMessage message = new SpooledMimeMessage(Session.getInstance(new Properties()), inputStream);
+      message.recordRawContent(message);
+      return message;
+    }
+  }
+
+  private void recordRawContent(MimePart part) throws MessagingException, IOException {
+    InputStream rawInputStream;
+    if (part instanceof MimeBodyPart bodyPart) {
+      rawInputStream = bodyPart.getRawInputStream();
+    } else if (part instanceof MimeMessage message) {
+      rawInputStream = message.getRawInputStream();
+    } else {
+      return;
+    }
+    if (rawInputStream instanceof SpoolInputStream spoolInputStream) {
+      partToRawContent.put(part, spoolInputStream);
+    }
+    Multipart multipart = MimeMessagePrettyPrinter.getMultipart(part);
+    if (multipart != null) {
+      List<Part> children = getChildren(multipart);
+      partToOriginalChildren.put(part, children);
+      for (Part child : children) {
+        if (child instanceof MimePart mimeChild) {
+          recordRawContent(mimeChild);
+        }
+      }
+    }
+  }
+
+  /**
+   * Marks a part whose content was replaced, or a multipart whose parts were added or removed, so that it is
+   * regenerated when the message is written.
+   */
+  void markChanged(Part part) {
+    changedParts.add(part);
+  }
+
+  @Override
+  public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+    if (changedParts.isEmpty()) {
+      // An unchanged message is already copied as it is.
+      super.writeTo(os, ignoreList);
+      return;
+    }
+    if (!saved) {
+      saveChanges();
+    }
+    writePart(this, os, ignoreList);
+    os.flush();
+  }
+
+  private void writePart(MimePart part, OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+    Multipart multipart = MimeMessagePrettyPrinter.getMultipart(part);
+    boolean changed = multipart == null ? changedParts.contains(part) : containsChanges(part, multipart);
+    if (!changed && copyRaw(part, os, ignoreList)) {
+      return;
+    }
+    String boundary = multipart instanceof MimeMultipart ? getBoundary(part) : null;
+    if (boundary != null) {
+      writeHeaders(part, os, ignoreList);
+      writeMultipart((MimeMultipart) multipart, boundary, os);
+    } else if (part == this) {
+      super.writeTo(os, ignoreList);
+    } else {
+      part.writeTo(os);
+    }
+  }
+
+  private boolean containsChanges(Part part, Multipart multipart) throws IOException, MessagingException {
+    List<Part> children = getChildren(multipart);
+    if (changedParts.contains(part) || !children.equals(partToOriginalChildren.get(part))) {
+      return true;
+    }
+    for (Part child : children) {
+      Multipart childMultipart = MimeMessagePrettyPrinter.getMultipart(child);
+      if (childMultipart == null ? changedParts.contains(child) : containsChanges(child, childMultipart)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return Whether the part's content is in the spooled file, so it was copied from there.
+   */
+  private boolean copyRaw(MimePart part, OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+    SpoolInputStream rawContent = partToRawContent.get(part);
+    if (rawContent == null) {
+      return false;
+    }
+    writeHeaders(part, os, ignoreList);
+    try (InputStream inputStream = rawContent.newStream(0, -1)) {
+      inputStream.transferTo(os);
+    }
+    return true;
+  }
+
+  private static List<Part> getChildren(Multipart multipart) throws MessagingException {
+    List<Part> children = new ArrayList<>(multipart.getCount());
+    for (int i = 0; i < multipart.getCount(); ++i) {
+      children.add(multipart.getBodyPart(i));
+    }
+    return children;
+  }
+
+  private void writeMultipart(MimeMultipart multipart, String boundary, OutputStream os)
+      throws IOException, MessagingException {
+    // The same layout as MimeMultipart.writeTo.
+    String preamble = multipart.getPreamble();
+    if (preamble != null) {
+      os.write(preamble.getBytes(StandardCharsets.ISO_8859_1));
+      if (!preamble.isEmpty() && !preamble.endsWith("\r") && !preamble.endsWith("\n")) {
+        os.write(CRLF);
+      }
+    }
+    if (multipart.getCount() == 0) {
+      throw new MessagingException("Empty multipart: " + multipart.getContentType());
+    }
+    for (int i = 0; i < multipart.getCount(); ++i) {
+      writeLine(os, "--" + boundary);
+      writePart((MimePart) multipart.getBodyPart(i), os, null);
+      os.write(CRLF);
+    }
+    writeLine(os, "--" + boundary + "--");
+  }
+
+  private static String getBoundary(Part part) throws MessagingException {
+    try {
+      return new ContentType(part.getContentType()).getParameter("boundary");
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+
+  private static void writeHeaders(MimePart part, OutputStream os, String[] ignoreList) throws IOException,
+      MessagingException {
+    Enumeration<String> headerLines = part.getNonMatchingHeaderLines(ignoreList);
+    while (headerLines.hasMoreElements()) {
+      writeLine(os, headerLines.nextElement());
+    }
+    os.write(CRLF);
+  }
+
+  private static void writeLine(OutputStream os, String line) throws IOException {
+    // Header lines were read as ISO-8859-1, so this writes back the original bytes.
+    os.write(line.getBytes(StandardCharsets.ISO_8859_1));
+    os.write(CRLF);
+  }
+}
@@ -0,0 +1,185 @@
+package app.unattach.model.attachmentstorage;
+
+import app.unattach.model.Constants;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+/**
+ * Saves email backups as entries of compressed zip segments rather than as separate files, which saves space and, on
+ * network file systems especially, the cost of creating and closing many small files.
+ *
+ * Attachments are always saved by the delegate, as separate files. The footer of a stripped email links to the file of
+ * each attachment, which is the only way to find it again once the original is removed.
+ *
+ * Entries are written to a segment until it grows past its maximum size or is flushed, at which point it is finished
+ * and renamed from .zip.part to .zip. Only then are its entries added to the index in the target directory, which tells
+ * {@link #open} which segment holds an entry.
+ */
+public class ArchiveUserStorage implements UserStorage {
+  private static final long MAX_SEGMENT_SIZE = 1024L * 1024 * 1024;
+  private static final String INDEX_FILENAME = Constants.PRODUCT_NAME.toLowerCase() + "-archive.index";
+
+  private final UserStorage delegate;
+  private final Map<File, Map<String, String>> directoryToEntryToSegment = new HashMap<>();
+  private int segmentNumber;
+  private File directory;
+  private Path segmentPath;
+  private FileOutputStream segmentOutputStream;
+  private ZipOutputStream zipOutputStream;
+  // The entries of the current segment, and whether each was saved in full.
+  private final Map<String, Boolean> segmentEntries = new LinkedHashMap<>();
+
+  public ArchiveUserStorage(UserStorage delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void saveAttachment(AttachmentContent content, File targetDirectory, String targetSubPath, long targetTimestamp)
+      throws IOException {
+    delegate.saveAttachment(content, targetDirectory, targetSubPath, targetTimestamp);
+  }
+
+  @Override
+  public synchronized void saveMessage(MimeMessage mimeMessage, File targetDirectory, String targetSubPath)
+      throws IOException, MessagingException {
+    startEntry(targetDirectory, targetSubPath, System.currentTimeMillis());
+    boolean saved = false;
+    try {
+      mimeMessage.writeTo(zipOutputStream);
+      saved = true;
+    } finally {
+      endEntry(targetSubPath, saved);
+    }
+  }
+
+  /**
+   * Finishes the current segment, so that everything saved so far can be read.
+   */
+  @Override
+  public void flush() throws IOException {
+    synchronized (this) {
+      finishSegment();
+    }
+    delegate.flush();
+  }
+
+  /**
+   * Opens an entry of a finished segment.
+   */
+  public synchronized InputStream open(File targetDirectory, String targetSubPath) throws IOException {
+    String segment = getEntryToSegment(targetDirectory).get(targetSubPath);
+    if (segment == null) {
+      throw new FileNotFoundException("No archived entry " + targetSubPath + " in " + targetDirectory + ".");
+    }
+    ZipFile zipFile = new ZipFile(new File(targetDirectory, segment));
+    ZipEntry entry = zipFile.getEntry(targetSubPath);
+    if (entry == null) {
+      zipFile.close();
+      throw new FileNotFoundException("Entry " + targetSubPath + " is missing from " + segment + ".");
+    }
+    return new FilterInputStream(zipFile.getInputStream(entry)) {
+      @Override
+      public void close() throws IOException {
+        zipFile.close();
+      }
+    };
+  }
+
+  private void startEntry(File targetDirectory, String targetSubPath, long timestamp) throws IOException {
+    if (zipOutputStream != null && (!targetDirectory.equals(directory) || segmentEntries.containsKey(targetSubPath) ||
+        segmentOutputStream.getChannel().position() >= MAX_SEGMENT_SIZE)) {
+      finishSegment();
+    }
+    if (zipOutputStream == null) {
+      directory = targetDirectory;
+      //noinspection ResultOfMethodCallIgnored
+      directory.mkdirs();
+      String segmentName = String.format("%s-archive-%d-%d.zip.part", Constants.PRODUCT_NAME.toLowerCase(),
+          System.currentTimeMillis(), ++segmentNumber);
+      segmentPath = directory.toPath().resolve(segmentName);
+      segmentOutputStream = new FileOutputStream(segmentPath.toFile());
+      zipOutputStream = new ZipOutputStream(new BufferedOutputStream(segmentOutputStream, 1024 * 1024));
+    }
+    ZipEntry entry = new ZipEntry(targetSubPath);
+    entry.setTime(timestamp);
+    zipOutputStream.putNextEntry(entry);
+  }
+
+  /**
+   * @param saved Whether the entry was saved in full. Entries that weren't are left out of the index, so that they are
+   * never read.
+   */
+  private void endEntry(String targetSubPath, boolean saved) throws IOException {
+    segmentEntries.put(targetSubPath, saved);
+    zipOutputStream.closeEntry();
+  }
+
+  private void finishSegment() throws IOException {
+    if (zipOutputStream == null) {
+      return;
+    }
+    zipOutputStream.finish();
+    zipOutputStream.flush();
+    segmentOutputStream.getFD().sync();
+    zipOutputStream.close();
+    zipOutputStream = null;
+    String segmentPathString = segmentPath.getFileName().toString();
+    Path finishedPath = segmentPath.resolveSibling(segmentPathString.substring(0, segmentPathString.length() - 5));
+    Files.move(segmentPath, finishedPath, ATOMIC_MOVE);
+    Map<String, String> entryToSegment = getEntryToSegment(directory);
+    try (Writer writer = Files.newBufferedWriter(directory.toPath().resolve(INDEX_FILENAME), UTF_8, CREATE, APPEND)) {
+      for (String entry : segmentEntries.keySet()) {
+        if (!segmentEntries.get(entry)) {
+          continue;
+        }
+        JSONObject record = new JSONObject();
+        record.put("entry", entry);
+        record.put("segment", finishedPath.getFileName().toString());
+        writer.write(record.toString());
+        writer.write('\n');
+        entryToSegment.put(entry, finishedPath.getFileName().toString());
+      }
+    }
+    segmentEntries.clear();
+  }
+
+  private Map<String, String> getEntryToSegment(File targetDirectory) throws IOException {
+    Map<String, String> entryToSegment = directoryToEntryToSegment.get(targetDirectory);
+    if (entryToSegment != null) {
+      return entryToSegment;
+    }
+    entryToSegment = new HashMap<>();
+    Path indexPath = targetDirectory.toPath().resolve(INDEX_FILENAME);
+    if (Files.exists(indexPath)) {
+      try (BufferedReader reader = Files.newBufferedReader(indexPath, UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          try {
+            JSONObject record = new JSONObject(line);
+            // Later records are of later saves of the same entry.
+            entryToSegment.put(record.getString("entry"), record.getString("segment"));
+          } catch (JSONException e) {
+            // A crash can cut off the last record.
+          }
+        }
+      }
+    }
+    directoryToEntryToSegment.put(targetDirectory, entryToSegment);
+    return entryToSegment;
+  }
+}
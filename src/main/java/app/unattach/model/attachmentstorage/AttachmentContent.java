@@ -0,0 +1,11 @@
+package app.unattach.model.attachmentstorage;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The decoded content of an attachment, which writes itself into the channel it is saved to.
+ */
+public interface AttachmentContent {
+  void writeTo(WritableByteChannel channel) throws IOException;
+}
@@ -0,0 +1,211 @@
+package app.unattach.model.attachmentstorage;
+
+import app.unattach.model.Constants;
+import app.unattach.utils.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Saves attachments so that identical ones share their storage.
+ *
+ * Each attachment is hashed while it is written to a temporary file next to its target. If an attachment with the same
+ * hash was saved before and is still there unchanged, the target becomes a hard link to it, and the temporary file is
+ * dropped; otherwise the temporary file is moved into place. The hashes of saved attachments are kept in an
+ * append-only index, so that duplicates are found across runs.
+ *
+ * Hard links share their contents and their modification time, so only the first copy gets the timestamp of its email,
+ * and editing one copy edits them all. Where hard links aren't supported, e.g. across file systems, files are saved in
+ * full.
+ */
+public class DeduplicatingUserStorage extends FileUserStorage {
+  private static final Logger logger = Logger.get();
+
+  // The size and modification time tell whether the file at the path is still the attachment that was saved there.
+  private record Entry(long size, long modified, Path path) {}
+
+  private final Path indexPath;
+  private final Map<String, Entry> hashToEntry = new HashMap<>();
+  private Writer writer;
+
+  public DeduplicatingUserStorage() {
+    this(getIndexPath());
+  }
+
+  public DeduplicatingUserStorage(Path indexPath) {
+    this.indexPath = indexPath;
+    load();
+  }
+
+  private void load() {
+    boolean damaged = false;
+    if (Files.exists(indexPath)) {
+      try (BufferedReader reader = Files.newBufferedReader(indexPath, UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          try {
+            JSONObject record = new JSONObject(line);
+            hashToEntry.put(record.getString("hash"),
+                new Entry(record.getLong("size"), record.getLong("modified"), Path.of(record.getString("path"))));
+          } catch (JSONException e) {
+            // A crash can cut off the last record.
+            damaged = true;
+          }
+        }
+      } catch (IOException e) {
+        logger.error("Failed to load the attachment index.", e);
+      }
+    }
+    logger.info("Loaded %d attachment index records.", hashToEntry.size());
+    try {
+      writer = Files.newBufferedWriter(indexPath, UTF_8, CREATE, APPEND);
+      if (damaged) {
+        // A cut-off record may lack its line end.
+        writer.write('\n');
+        writer.flush();
+      }
+    } catch (IOException e) {
+      logger.error("Failed to open the attachment index for writing. Duplicates will only be found in this run.", e);
+    }
+  }
+
+  @Override
+  public void saveAttachment(AttachmentContent content, File targetDirectory, String targetSubPath, long targetTimestamp)
+      throws IOException {
+    Path targetPath = Path.of(targetDirectory.getAbsolutePath(), targetSubPath);
+    //noinspection ResultOfMethodCallIgnored
+    targetPath.getParent().toFile().mkdirs();
+    Path tempPath = targetPath.resolveSibling(targetPath.getFileName() + ".part");
+    Files.deleteIfExists(tempPath);
+    try {
+      HashingChannel hashingChannel;
+      try (FileChannel channel = FileChannel.open(tempPath, CREATE_NEW, WRITE)) {
+        hashingChannel = new HashingChannel(channel);
+        content.writeTo(hashingChannel);
+      }
+      String hash = hashingChannel.getHash();
+      synchronized (this) {
+        Entry existing = hashToEntry.get(hash);
+        if (existing != null && isIntact(existing) &&
+            (existing.path().equals(targetPath) || link(existing.path(), targetPath))) {
+          logger.info("Linked attachment %s to its duplicate %s.", targetPath, existing.path());
+          return;
+        }
+        // Moving rather than writing into the target leaves any files linked to the old target as they were.
+        Files.move(tempPath, targetPath, REPLACE_EXISTING);
+        //noinspection ResultOfMethodCallIgnored
+        targetPath.toFile().setLastModified(targetTimestamp);
+        add(hash, new Entry(hashingChannel.size, targetPath.toFile().lastModified(), targetPath));
+      }
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  private static boolean isIntact(Entry entry) {
+    File file = entry.path().toFile();
+    return file.isFile() && file.length() == entry.size() && file.lastModified() == entry.modified();
+  }
+
+  /**
+   * @return Whether the target was made a hard link to the existing attachment.
+   */
+  private static boolean link(Path existingPath, Path targetPath) {
+    try {
+      Files.deleteIfExists(targetPath);
+      Files.createLink(targetPath, existingPath);
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.warn("Failed to link attachment %s to %s: %s", targetPath, existingPath, e.getMessage());
+      return false;
+    }
+  }
+
+  private void add(String hash, Entry entry) {
+    hashToEntry.put(hash, entry);
+    if (writer == null) {
+      return;
+    }
+    try {
+      JSONObject record = new JSONObject();
+      record.put("hash", hash);
+      record.put("size", entry.size());
+      record.put("modified", entry.modified());
+      record.put("path", entry.path().toString());
+      writer.write(record.toString());
+      writer.write('\n');
+      writer.flush();
+    } catch (IOException e) {
+      logger.error("Failed to save to the attachment index.", e);
+    }
+  }
+
+  private static Path getIndexPath() {
+    String userHome = System.getProperty("user.home");
+    return Path.of(userHome, "." + Constants.PRODUCT_NAME.toLowerCase() + ".attachments");
+  }
+
+  /**
+   * Hashes what is written through it.
+   */
+  private static class HashingChannel implements WritableByteChannel {
+    private final WritableByteChannel channel;
+    private final MessageDigest digest;
+    private long size;
+
+    private HashingChannel(WritableByteChannel channel) {
+      this.channel = channel;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        // Every Java platform supports SHA-256.
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+      ByteBuffer hashed = source.duplicate();
+      int written = channel.write(source);
+      hashed.limit(hashed.position() + written);
+      digest.update(hashed);
+      size += written;
+      return written;
+    }
+
+    private String getHash() {
+      return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    @Override
+    public boolean isOpen() {
+      return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+}
@@ -3,18 +3,21 @@ package app.unattach.model.attachmentstorage;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class FileUserStorage implements UserStorage {
   @Override
-  public void saveAttachment(InputStream inputStream, File targetDirectory, String targetSubPath, long targetTimestamp)
+  public void saveAttachment(AttachmentContent content, File targetDirectory, String targetSubPath, long targetTimestamp)
       throws IOException {
     Path targetPath = Path.of(targetDirectory.getAbsolutePath(), targetSubPath);
     //noinspection ResultOfMethodCallIgnored
     targetPath.getParent().toFile().mkdirs();
-    Files.copy(inputStream, targetPath, StandardCopyOption.REPLACE_EXISTING);
+    try (FileChannel channel = FileChannel.open(targetPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      content.writeTo(channel);
+    }
     //noinspection ResultOfMethodCallIgnored
     targetPath.toFile().setLastModified(targetTimestamp);
   }
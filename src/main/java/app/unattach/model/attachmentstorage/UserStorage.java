@@ -4,11 +4,73 @@ import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public interface UserStorage {
-  void saveAttachment(InputStream inputStream, File targetDirectory, String targetSubPath, long targetTimestamp)
+  void saveAttachment(AttachmentContent content, File targetDirectory, String targetSubPath, long targetTimestamp)
       throws IOException;
   void saveMessage(MimeMessage mimeMessage, File targetDirectory, String targetSubPath)
       throws IOException, MessagingException;
+
+  /**
+   * Saves an attachment, possibly in the background, in which case the content must stay readable until the future
+   * completes. By default, the attachment is saved right away.
+   */
+  default CompletableFuture<Void> saveAttachmentAsync(AttachmentContent content, File targetDirectory,
+                                                      String targetSubPath, long targetTimestamp) {
+    try {
+      saveAttachment(content, targetDirectory, targetSubPath, targetTimestamp);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException | RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Saves a message, possibly in the background, in which case the message must stay readable until the future
+   * completes. By default, the message is saved right away.
+   */
+  default CompletableFuture<Void> saveMessageAsync(MimeMessage mimeMessage, File targetDirectory,
+                                                   String targetSubPath) {
+    try {
+      saveMessage(mimeMessage, targetDirectory, targetSubPath);
+      return CompletableFuture.completedFuture(null);
+    } catch (IOException | MessagingException | RuntimeException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Makes everything saved so far durable and readable. Called before original emails are removed.
+   */
+  default void flush() throws IOException {}
+
+  /**
+   * Waits for a save, and rethrows its failure.
+   */
+  static void await(CompletableFuture<Void> future) throws IOException, MessagingException {
+    try {
+      future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      } else if (e.getCause() instanceof MessagingException messagingException) {
+        throw messagingException;
+      } else if (e.getCause() instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Waits for saves, and rethrows the first failure among them.
+   */
+  static void awaitAll(List<CompletableFuture<Void>> futures) throws IOException, MessagingException {
+    for (CompletableFuture<Void> future : futures) {
+      await(future);
+    }
+  }
 }
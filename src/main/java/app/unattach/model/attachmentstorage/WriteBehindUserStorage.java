@@ -0,0 +1,112 @@
+package app.unattach.model.attachmentstorage;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saves to another storage on its own I/O threads, so that a slow target doesn't hold up the threads that download and
+ * upload emails.
+ *
+ * The asynchronous saves return once the save is queued, and their futures complete when it is done. At most a fixed
+ * number of saves are queued or running at once; beyond that, queueing blocks, so that the contents waiting to be saved
+ * don't pile up in memory. The synchronous saves wait for their turn and their completion.
+ */
+public class WriteBehindUserStorage implements UserStorage {
+  private interface Save {
+    void run() throws IOException, MessagingException;
+  }
+
+  private final UserStorage delegate;
+  private final ExecutorService executor;
+  private final Semaphore capacity;
+  private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param threads The number of saves that run at once.
+   * @param maxPending The number of saves that can be queued or running at once.
+   */
+  public WriteBehindUserStorage(UserStorage delegate, int threads, int maxPending) {
+    this.delegate = delegate;
+    AtomicInteger threadNumber = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(threads, runnable -> {
+      Thread thread = new Thread(runnable, "write-behind-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    capacity = new Semaphore(maxPending);
+  }
+
+  @Override
+  public void saveAttachment(AttachmentContent content, File targetDirectory, String targetSubPath, long targetTimestamp)
+      throws IOException {
+    try {
+      UserStorage.await(saveAttachmentAsync(content, targetDirectory, targetSubPath, targetTimestamp));
+    } catch (MessagingException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void saveMessage(MimeMessage mimeMessage, File targetDirectory, String targetSubPath)
+      throws IOException, MessagingException {
+    UserStorage.await(saveMessageAsync(mimeMessage, targetDirectory, targetSubPath));
+  }
+
+  @Override
+  public CompletableFuture<Void> saveAttachmentAsync(AttachmentContent content, File targetDirectory,
+                                                     String targetSubPath, long targetTimestamp) {
+    return submit(() -> delegate.saveAttachment(content, targetDirectory, targetSubPath, targetTimestamp));
+  }
+
+  @Override
+  public CompletableFuture<Void> saveMessageAsync(MimeMessage mimeMessage, File targetDirectory,
+                                                  String targetSubPath) {
+    return submit(() -> delegate.saveMessage(mimeMessage, targetDirectory, targetSubPath));
+  }
+
+  /**
+   * Waits for the queued saves to be done, then flushes the other storage.
+   */
+  @Override
+  public void flush() throws IOException {
+    try {
+      UserStorage.awaitAll(new ArrayList<>(pending));
+    } catch (MessagingException e) {
+      throw new IOException(e);
+    }
+    delegate.flush();
+  }
+
+  private CompletableFuture<Void> submit(Save save) {
+    try {
+      capacity.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return CompletableFuture.failedFuture(e);
+    }
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    pending.add(future);
+    executor.execute(() -> {
+      try {
+        save.run();
+        future.complete(null);
+      } catch (Throwable t) {
+        future.completeExceptionally(t);
+      } finally {
+        pending.remove(future);
+        capacity.release();
+      }
+    });
+    return future;
+  }
+}
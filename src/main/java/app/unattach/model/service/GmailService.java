@@ -12,7 +12,9 @@ import com.google.api.services.gmail.model.MessagePartHeader;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
-import java.io.ByteArrayInputStream;
+import javax.mail.internet.SharedInputStream;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
@@ -20,16 +22,34 @@ import java.util.*;
 import static org.apache.commons.codec.binary.Base64.decodeBase64;
 
 public interface GmailService {
+  // Gmail allows at most 100 calls in a single batch request.
+  int MAX_METADATA_BATCH_SIZE = 100;
+  // Gmail allows at most 1000 message IDs in a single messages.batchModify or messages.batchDelete request.
+  int MAX_BULK_WRITE_SIZE = 1000;
+
   void addLabel(String messageIds, String labelId) throws GmailServiceException;
+  void addLabel(List<String> messageIds, String labelId) throws GmailServiceException;
   void batchGetMetadata(List<String> messageIds, JsonBatchCallback<Message> callback) throws GmailServiceException;
   Label createLabel(Label labelIn) throws GmailServiceException;
   void removeMessage(String messageId, boolean permanentlyRemove) throws GmailServiceException;
+  void removeMessages(List<String> messageIds, boolean permanentlyRemove) throws GmailServiceException;
   String getEmailAddress() throws GmailServiceException;
+  String getHistoryId() throws GmailServiceException;
+  MailboxChanges getChangesSince(String startHistoryId) throws GmailServiceException;
   SortedMap<String, String> getIdToLabel() throws GmailServiceException;
   Message getUniqueIdAndHeaders(String messageId) throws GmailServiceException;
-  Message getRawMessage(String messageId) throws GmailServiceException;
-  Message insertMessage(Message message) throws GmailServiceException;
-  List<Message> search(String query) throws GmailServiceException;
+  /**
+   * Downloads the given message in RFC 822 format into the given file.
+   *
+   * @return The rest of the message, without its raw contents.
+   */
+  Message getRawMessage(String messageId, File file) throws GmailServiceException;
+  /**
+   * Inserts the given MIME message, with the labels and thread of the given message.
+   */
+  Message insertMessage(Message message, MimeMessage mimeMessage) throws GmailServiceException;
+  int getMetadataBatchSize();
+  MessageIdPage search(String query, String pageToken) throws GmailServiceException;
 
   static Map<String, String> getHeaderMap(Message message) {
     List<MessagePartHeader> headers = message.getPayload().getHeaders();
@@ -49,12 +69,34 @@ public interface GmailService {
   }
 
   static MimeMessage getMimeMessage(Message message) throws MessagingException, IOException {
+    return getMimeMessage(getRawBytes(message));
+  }
+
+  static byte[] getRawBytes(Message message) throws IOException {
     String rawBefore = message.getRaw();
     if (rawBefore == null) {
       throw new IOException("Unable to extract the contents of the email.");
     }
-    byte[] emailBytes = decodeBase64(rawBefore);
-    try (InputStream is = new ByteArrayInputStream(emailBytes)) {
+    return decodeBase64(rawBefore);
+  }
+
+  /**
+   * Parses the given bytes. Body parts share the bytes rather than copying them, so the same bytes can back several
+   * independent messages.
+   */
+  static MimeMessage getMimeMessage(byte[] emailBytes) throws MessagingException, IOException {
+    try (InputStream is = new SharedByteArrayInputStream(emailBytes)) {
+      Session session = Session.getInstance(new Properties());
+      return new MimeMessage(session, is);
+    }
+  }
+
+  /**
+   * Parses the message in the given file. Body parts read their contents from the file when needed rather than holding
+   * them in memory, so the same file can back several independent messages, as long as the given stream stays open.
+   */
+  static MimeMessage getMimeMessage(SharedInputStream source) throws MessagingException, IOException {
+    try (InputStream is = source.newStream(0, -1)) {
       Session session = Session.getInstance(new Properties());
       return new MimeMessage(session, is);
     }
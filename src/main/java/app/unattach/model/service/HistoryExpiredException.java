@@ -0,0 +1,10 @@
+package app.unattach.model.service;
+
+/**
+ * Thrown when Gmail no longer keeps the history since the requested history ID, so a full search is needed.
+ */
+public class HistoryExpiredException extends GmailServiceException {
+  public HistoryExpiredException(Exception e) {
+    super(e);
+  }
+}
@@ -1,18 +1,35 @@
 package app.unattach.model.service;
 
+import app.unattach.model.Constants;
 import app.unattach.utils.Logger;
 import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.services.gmail.Gmail;
 import com.google.api.services.gmail.model.*;
 
-import java.io.IOException;
-import java.lang.Thread;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import java.io.*;
+import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
-public record LiveGmailService(Gmail gmail) implements GmailService {
+public record LiveGmailService(Gmail gmail, QuotaScheduler quotaScheduler, RetryPolicy retryPolicy)
+    implements GmailService {
   private static final Logger logger = Logger.get();
   private static final String USER = "me";
+  // Gmail returns at most 500 messages per messages.list page.
+  private static final long MAX_SEARCH_PAGE_SIZE = 500L;
+  private static final long MAX_DIRECT_UPLOAD_SIZE = 5L * Constants.BYTES_IN_MEGABYTE;
+  private static final String METADATA_FIELDS =
+      "id,labelIds,internalDate,payload/filename,payload/headers,payload/parts/filename,sizeEstimate";
 
   @Override
   public void addLabel(String messageIds, String labelId) throws GmailServiceException {
@@ -23,9 +40,24 @@ public record LiveGmailService(Gmail gmail) implements GmailService {
     try {
       ModifyMessageRequest modifyMessageRequest = new ModifyMessageRequest();
       modifyMessageRequest.setAddLabelIds(Collections.singletonList(labelId));
-      // 1 messages.modify == 5 quota units
-      gmail.users().messages().modify(USER, messageIds, modifyMessageRequest).execute();
-    } catch (IOException e) {
+      execute(QuotaCost.MESSAGES_MODIFY, gmail.users().messages().modify(USER, messageIds, modifyMessageRequest));
+    } catch (IOException | InterruptedException e) {
+      throw new GmailServiceException(e);
+    }
+  }
+
+  @Override
+  public void addLabel(List<String> messageIds, String labelId) throws GmailServiceException {
+    if (labelId == null) {
+      logger.warn("Cannot add a label, because it was not specified.");
+      return;
+    }
+    try {
+      BatchModifyMessagesRequest batchModifyMessagesRequest = new BatchModifyMessagesRequest();
+      batchModifyMessagesRequest.setIds(messageIds);
+      batchModifyMessagesRequest.setAddLabelIds(Collections.singletonList(labelId));
+      execute(QuotaCost.BATCH_MODIFY, gmail.users().messages().batchModify(USER, batchModifyMessagesRequest));
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
@@ -34,23 +66,73 @@ public record LiveGmailService(Gmail gmail) implements GmailService {
   public void batchGetMetadata(List<String> messageIds, JsonBatchCallback<Message> callback)
       throws GmailServiceException {
     try {
-      BatchRequest batch = gmail.batch();
-      for (String emailId : messageIds) {
-        // 1 messages.get == 5 quota units
-        String fields = "id,labelIds,internalDate,payload/filename,payload/headers,payload/parts/filename,sizeEstimate";
-        gmail.users().messages().get(USER, emailId).setFields(fields).queue(batch, callback);
+      retryPolicy.recordCalls(messageIds.size());
+      // Only the emails whose individual requests failed transiently are requested again.
+      List<String> pendingIds = messageIds;
+      for (int attempt = 1; !pendingIds.isEmpty(); ++attempt) {
+        Map<String, BatchResponse> idToResponse = getMetadata(pendingIds);
+        List<String> retryIds = new ArrayList<>();
+        long retryAfterMillis = 0;
+        for (String messageId : pendingIds) {
+          BatchResponse response = idToResponse.get(messageId);
+          if (response.error() == null) {
+            callback.onSuccess(response.message(), response.headers());
+          } else if (RetryPolicy.isRetryable(response.error()) && retryPolicy.canRetry(attempt)) {
+            retryIds.add(messageId);
+            retryAfterMillis = Math.max(retryAfterMillis, RetryPolicy.getRetryAfterMillis(response.headers()));
+          } else {
+            callback.onFailure(response.error(), response.headers());
+          }
+        }
+        if (!retryIds.isEmpty()) {
+          retryPolicy.backOff(attempt, retryAfterMillis,
+              "%d of %d emails failed".formatted(retryIds.size(), pendingIds.size()));
+        }
+        pendingIds = retryIds;
       }
-      batch.execute();
-    } catch (IOException e) {
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
 
+  private record BatchResponse(Message message, GoogleJsonError error, HttpHeaders headers) {}
+
+  /**
+   * Responses are collected rather than passed on, so that retrying a failed batch as a whole cannot pass on any
+   * response twice.
+   */
+  private Map<String, BatchResponse> getMetadata(List<String> messageIds) throws IOException, InterruptedException {
+    return retryPolicy.execute(() -> {
+      Map<String, BatchResponse> idToResponse = new HashMap<>();
+      BatchRequest batch = gmail.batch();
+      for (String messageId : messageIds) {
+        JsonBatchCallback<Message> callback = new JsonBatchCallback<>() {
+          @Override
+          public void onSuccess(Message message, HttpHeaders headers) {
+            idToResponse.put(messageId, new BatchResponse(message, null, headers));
+          }
+
+          @Override
+          public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+            idToResponse.put(messageId, new BatchResponse(null, error, headers));
+          }
+        };
+        gmail.users().messages().get(USER, messageId).setFields(METADATA_FIELDS).queue(batch, callback);
+      }
+      quotaScheduler.acquire(QuotaCost.MESSAGES_GET, messageIds.size());
+      batch.execute();
+      return idToResponse;
+    });
+  }
+
   @Override
   public Label createLabel(Label labelIn) throws GmailServiceException {
     try {
-      return gmail.users().labels().create(USER, labelIn).execute();
-    } catch (IOException e) {
+      return retryPolicy.execute(() -> {
+        quotaScheduler.acquire(QuotaCost.LABELS_CREATE);
+        return gmail.users().labels().create(USER, labelIn).execute();
+      }, false);
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
@@ -59,13 +141,30 @@ public record LiveGmailService(Gmail gmail) implements GmailService {
   public void removeMessage(String messageId, boolean permanentlyRemove) throws GmailServiceException {
     try {
       if (permanentlyRemove) {
-        // 1 messages.delete == 10 quota units
-        gmail.users().messages().delete(USER, messageId).execute();
+        execute(QuotaCost.MESSAGES_DELETE, gmail.users().messages().delete(USER, messageId));
+      } else {
+        execute(QuotaCost.MESSAGES_TRASH, gmail.users().messages().trash(USER, messageId));
+      }
+    } catch (IOException | InterruptedException e) {
+      throw new GmailServiceException(e);
+    }
+  }
+
+  @Override
+  public void removeMessages(List<String> messageIds, boolean permanentlyRemove) throws GmailServiceException {
+    try {
+      if (permanentlyRemove) {
+        BatchDeleteMessagesRequest batchDeleteMessagesRequest = new BatchDeleteMessagesRequest();
+        batchDeleteMessagesRequest.setIds(messageIds);
+        execute(QuotaCost.BATCH_DELETE, gmail.users().messages().batchDelete(USER, batchDeleteMessagesRequest));
       } else {
-        // 1 messages.trash == 5 quota units
-        gmail.users().messages().trash(USER, messageId).execute();
+        // There is no bulk messages.trash, but adding the TRASH label has the same effect.
+        BatchModifyMessagesRequest batchModifyMessagesRequest = new BatchModifyMessagesRequest();
+        batchModifyMessagesRequest.setIds(messageIds);
+        batchModifyMessagesRequest.setAddLabelIds(Collections.singletonList("TRASH"));
+        execute(QuotaCost.BATCH_MODIFY, gmail.users().messages().batchModify(USER, batchModifyMessagesRequest));
       }
-    } catch (IOException e) {
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
@@ -73,22 +172,73 @@ public record LiveGmailService(Gmail gmail) implements GmailService {
   @Override
   public String getEmailAddress() throws GmailServiceException {
     try {
-      // unknown quota units
-      Profile profile = gmail.users().getProfile(USER).setFields("emailAddress").execute();
+      Profile profile = execute(QuotaCost.GET_PROFILE, gmail.users().getProfile(USER).setFields("emailAddress"));
       return profile.getEmailAddress();
-    } catch (IOException e) {
+    } catch (IOException | InterruptedException e) {
+      throw new GmailServiceException(e);
+    }
+  }
+
+  @Override
+  public String getHistoryId() throws GmailServiceException {
+    try {
+      Profile profile = execute(QuotaCost.GET_PROFILE, gmail.users().getProfile(USER).setFields("historyId"));
+      return profile.getHistoryId().toString();
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
 
+  @Override
+  public MailboxChanges getChangesSince(String startHistoryId) throws GmailServiceException {
+    try {
+      Set<String> changedMessageIds = new HashSet<>();
+      Set<String> removedMessageIds = new HashSet<>();
+      String historyId = startHistoryId;
+      String pageToken = null;
+      do {
+        ListHistoryResponse response = execute(QuotaCost.HISTORY_LIST, gmail.users().history().list(USER)
+            .setStartHistoryId(new BigInteger(startHistoryId)).setPageToken(pageToken));
+        for (History history : Objects.requireNonNullElse(response.getHistory(), List.<History>of())) {
+          addMessageIds(history.getMessagesAdded(), HistoryMessageAdded::getMessage, changedMessageIds);
+          addMessageIds(history.getLabelsAdded(), HistoryLabelAdded::getMessage, changedMessageIds);
+          addMessageIds(history.getLabelsRemoved(), HistoryLabelRemoved::getMessage, changedMessageIds);
+          addMessageIds(history.getMessagesDeleted(), HistoryMessageDeleted::getMessage, removedMessageIds);
+        }
+        if (response.getHistoryId() != null) {
+          historyId = response.getHistoryId().toString();
+        }
+        pageToken = response.getNextPageToken();
+      } while (pageToken != null);
+      changedMessageIds.removeAll(removedMessageIds);
+      return new MailboxChanges(changedMessageIds, removedMessageIds, historyId);
+    } catch (GoogleJsonResponseException e) {
+      // Gmail keeps history for about a week; older history IDs are rejected as not found.
+      if (e.getStatusCode() == 404) {
+        throw new HistoryExpiredException(e);
+      }
+      throw new GmailServiceException(e);
+    } catch (IOException | InterruptedException e) {
+      throw new GmailServiceException(e);
+    }
+  }
+
+  private static <T> void addMessageIds(List<T> records, Function<T, Message> getMessage, Set<String> messageIds) {
+    if (records != null) {
+      for (T record : records) {
+        messageIds.add(getMessage.apply(record).getId());
+      }
+    }
+  }
+
   @Override
   public SortedMap<String, String> getIdToLabel() throws GmailServiceException {
     try {
-      // 1 labels.get == 1 quota unit
-      ListLabelsResponse response = gmail.users().labels().list(USER).setFields("labels/id,labels/name").execute();
+      ListLabelsResponse response =
+          execute(QuotaCost.LABELS_LIST, gmail.users().labels().list(USER).setFields("labels/id,labels/name"));
       GmailService.trackInDebugMode(logger, response);
       return GmailService.labelsResponseToMap(response);
-    } catch (IOException e) {
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
@@ -96,59 +246,99 @@ public record LiveGmailService(Gmail gmail) implements GmailService {
   @Override
   public Message getUniqueIdAndHeaders(String messageId) throws GmailServiceException {
     try {
-      // 1 messages.get == 5 quota units
-      return gmail.users().messages().get(USER, messageId).setFields("id,payload/headers").execute();
-    } catch (IOException e) {
+      return execute(QuotaCost.MESSAGES_GET,
+          gmail.users().messages().get(USER, messageId).setFields("id,payload/headers"));
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
 
   @Override
-  public Message getRawMessage(String messageId) throws GmailServiceException {
+  public Message getRawMessage(String messageId, File file) throws GmailServiceException {
     try {
-      // 1 messages.get == 5 quota units
+      Gmail.Users.Messages.Get request = gmail.users().messages().get(USER, messageId).setFormat("raw");
       // download limit = 2500 MB / day / user
-      return gmail.users().messages().get(USER, messageId).setFormat("raw").execute();
-    } catch (IOException e) {
+      return retryPolicy.execute(() -> {
+        quotaScheduler.acquire(QuotaCost.MESSAGES_GET);
+        // The response is read as it arrives, rather than parsed into a Message with the raw contents in a string.
+        HttpResponse response = request.executeUnparsed();
+        try (InputStream content = response.getContent();
+             OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file))) {
+          return RawMessageReader.read(content, outputStream, gmail.getJsonFactory());
+        } finally {
+          response.disconnect();
+        }
+      });
+    } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
 
   @Override
-  public Message insertMessage(Message message) throws GmailServiceException {
+  public Message insertMessage(Message message, MimeMessage mimeMessage) throws GmailServiceException {
+    File file = null;
     try {
-      // 1 messages.insert == 25 quota units
+      // The message is streamed into a file, and uploaded from there as message/rfc822 media, rather than being
+      // base64-encoded into the JSON request. This keeps it out of the heap, and the file can be sent again on retry.
+      file = File.createTempFile(Constants.PRODUCT_NAME.toLowerCase() + "-upload-", ".eml");
+      try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file))) {
+        mimeMessage.writeTo(outputStream);
+      }
+      FileContent content = new FileContent("message/rfc822", file);
+      Message metadata = new Message().setLabelIds(message.getLabelIds()).setThreadId(message.getThreadId());
+      // Small messages are sent in a single multipart request; larger ones in chunks of a resumable upload.
+      boolean directUpload = file.length() <= MAX_DIRECT_UPLOAD_SIZE;
       // upload limit = 500 MB / day / user
-      return gmail.users().messages().insert(USER, message).setInternalDateSource("dateHeader").execute();
-    } catch (IOException e) {
+      // An insert that failed without a response may have gone through, so only rejected inserts are retried.
+      return retryPolicy.execute(() -> {
+        quotaScheduler.acquire(QuotaCost.MESSAGES_INSERT);
+        Gmail.Users.Messages.Insert insert = gmail.users().messages().insert(USER, metadata, content)
+            .setInternalDateSource("dateHeader");
+        insert.getMediaHttpUploader().setDirectUploadEnabled(directUpload);
+        return insert.execute();
+      }, false);
+    } catch (IOException | MessagingException | InterruptedException e) {
       throw new GmailServiceException(e);
+    } finally {
+      if (file != null && !file.delete()) {
+        logger.warn("Failed to delete the temporary file %s.", file);
+      }
     }
   }
 
   @Override
-  public List<Message> search(String query) throws GmailServiceException {
+  public int getMetadataBatchSize() {
+    // Size the batch to what the quota can admit within about a second.
+    return quotaScheduler.getAffordableCount(QuotaCost.MESSAGES_GET, 1, TimeUnit.SECONDS, MAX_METADATA_BATCH_SIZE);
+  }
+
+  @Override
+  public MessageIdPage search(String query, String pageToken) throws GmailServiceException {
     try {
-      List<Message> messages = new ArrayList<>();
-      String pageToken = null;
-      do {
-        // 1 messages.list == 5 quota units
-        Gmail.Users.Messages.List request = gmail.users().messages().list(USER).setFields("messages/id,nextPageToken")
-            .setQ(query).setMaxResults(100000L).setPageToken(pageToken);
-        ListMessagesResponse response = request.execute();
-        if (response == null) {
-          break;
-        }
-        List<Message> responseMessages = response.getMessages();
-        if (responseMessages == null) {
-          break;
-        }
-        messages.addAll(responseMessages);
-        pageToken = response.getNextPageToken();
-        Thread.sleep(25);
-      } while (pageToken != null);
-      return messages;
+      Gmail.Users.Messages.List request = gmail.users().messages().list(USER).setFields("messages/id,nextPageToken")
+          .setQ(query).setMaxResults(MAX_SEARCH_PAGE_SIZE).setPageToken(pageToken);
+      ListMessagesResponse response = execute(QuotaCost.MESSAGES_LIST, request);
+      if (response == null || response.getMessages() == null) {
+        return new MessageIdPage(List.of(), null);
+      }
+      List<String> messageIds = new ArrayList<>(response.getMessages().size());
+      for (Message message : response.getMessages()) {
+        messageIds.add(message.getId());
+      }
+      return new MessageIdPage(messageIds, response.getNextPageToken());
     } catch (IOException | InterruptedException e) {
       throw new GmailServiceException(e);
     }
   }
+
+  /**
+   * Executes the request once the quota admits it, and retries it while it fails transiently.
+   */
+  private <T> T execute(QuotaCost cost, AbstractGoogleClientRequest<T> request)
+      throws IOException, InterruptedException {
+    return retryPolicy.execute(() -> {
+      quotaScheduler.acquire(cost);
+      return request.execute();
+    });
+  }
 }
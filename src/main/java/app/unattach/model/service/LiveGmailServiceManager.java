@@ -39,7 +39,8 @@ public class LiveGmailServiceManager implements GmailServiceManager {
       Gmail gmail = new Gmail.Builder(httpTransport, JSON_FACTORY, setHttpTimeout(credential))
           .setApplicationName(GOOGLE_APPLICATION_NAME)
           .build();
-      return new LiveGmailService(gmail);
+      return new LiveGmailService(gmail, new QuotaScheduler(QuotaScheduler.GMAIL_UNITS_PER_SECOND),
+          new RetryPolicy());
     } catch (GeneralSecurityException | IOException e) {
       throw new GmailServiceManagerException(e);
     }
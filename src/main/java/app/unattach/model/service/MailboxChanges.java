@@ -0,0 +1,16 @@
+package app.unattach.model.service;
+
+import java.util.Set;
+
+/**
+ * The emails that changed in the mailbox since a given history ID.
+ *
+ * @param changedMessageIds Emails that were added, or had labels added or removed.
+ * @param removedMessageIds Emails that were permanently removed.
+ * @param historyId The history ID of the mailbox after these changes.
+ */
+public record MailboxChanges(Set<String> changedMessageIds, Set<String> removedMessageIds, String historyId) {
+  public boolean isEmpty() {
+    return changedMessageIds.isEmpty() && removedMessageIds.isEmpty();
+  }
+}
@@ -0,0 +1,5 @@
+package app.unattach.model.service;
+
+import java.util.List;
+
+public record MessageIdPage(List<String> messageIds, String nextPageToken) {}
@@ -0,0 +1,31 @@
+package app.unattach.model.service;
+
+/**
+ * Quota units charged by Gmail for each API method.
+ *
+ * See https://developers.google.com/gmail/api/reference/quota.
+ */
+public enum QuotaCost {
+  BATCH_DELETE(50),
+  BATCH_MODIFY(50),
+  GET_PROFILE(1),
+  HISTORY_LIST(2),
+  LABELS_CREATE(5),
+  LABELS_LIST(1),
+  MESSAGES_DELETE(10),
+  MESSAGES_GET(5),
+  MESSAGES_INSERT(25),
+  MESSAGES_LIST(5),
+  MESSAGES_MODIFY(5),
+  MESSAGES_TRASH(5);
+
+  private final int units;
+
+  QuotaCost(int units) {
+    this.units = units;
+  }
+
+  public int getUnits() {
+    return units;
+  }
+}
@@ -0,0 +1,69 @@
+package app.unattach.model.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that admits Gmail API calls against the per-user quota.
+ *
+ * The bucket holds at most one second worth of units. A call that costs more than the whole bucket (e.g. a large batch)
+ * is admitted once the bucket is full, and the resulting debt is paid off before any further calls are admitted.
+ */
+public class QuotaScheduler {
+  // 250 quota units / user / second
+  public static final int GMAIL_UNITS_PER_SECOND = 250;
+
+  private final int capacity;
+  private final double unitsPerNanosecond;
+  private double availableUnits;
+  private long lastRefillNanoTime;
+
+  public QuotaScheduler(int unitsPerSecond) {
+    capacity = unitsPerSecond;
+    unitsPerNanosecond = unitsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+    availableUnits = capacity;
+    lastRefillNanoTime = System.nanoTime();
+  }
+
+  public void acquire(QuotaCost cost) throws InterruptedException {
+    acquire(cost, 1);
+  }
+
+  public void acquire(QuotaCost cost, int count) throws InterruptedException {
+    acquire(cost.getUnits() * count);
+  }
+
+  /**
+   * Blocks until the given number of units can be spent.
+   */
+  public synchronized void acquire(int units) throws InterruptedException {
+    int requiredUnits = Math.min(units, capacity);
+    refill();
+    while (availableUnits < requiredUnits) {
+      long waitNanoseconds = (long) Math.ceil((requiredUnits - availableUnits) / unitsPerNanosecond);
+      TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, waitNanoseconds));
+      refill();
+    }
+    availableUnits -= units;
+  }
+
+  /**
+   * @return How many calls of the given cost can be admitted within the given time window, clamped to [1, max].
+   */
+  public synchronized int getAffordableCount(QuotaCost cost, long window, TimeUnit unit, int max) {
+    refill();
+    double units = availableUnits + unit.toNanos(window) * unitsPerNanosecond;
+    int count = (int) (units / cost.getUnits());
+    return Math.max(1, Math.min(max, count));
+  }
+
+  synchronized double getAvailableUnits() {
+    refill();
+    return availableUnits;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    availableUnits = Math.min(capacity, availableUnits + (now - lastRefillNanoTime) * unitsPerNanosecond);
+    lastRefillNanoTime = now;
+  }
+}
@@ -0,0 +1,138 @@
+package app.unattach.model.service;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.gmail.model.Message;
+import org.apache.commons.codec.binary.Base64InputStream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a message in raw format from its JSON representation, and streams the decoded raw contents into an output, so
+ * that they are never held in memory as a whole, neither as the base64 string nor as bytes.
+ *
+ * The JSON is scanned rather than parsed: all structural characters are ASCII, and base64 contains no quotes or
+ * escapes, so the raw value ends at the next quote. The rest of the JSON is small, and is parsed as usual.
+ */
+class RawMessageReader {
+  private static final String RAW_KEY = "raw";
+
+  private final PushbackInputStream in;
+  private final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+  private int depth;
+
+  private RawMessageReader(InputStream json) {
+    in = new PushbackInputStream(new BufferedInputStream(json));
+  }
+
+  /**
+   * @return The message without its raw contents, which were written to the given output.
+   */
+  static Message read(InputStream json, OutputStream raw, JsonFactory jsonFactory) throws IOException {
+    RawMessageReader reader = new RawMessageReader(json);
+    boolean foundRaw = reader.scan(raw);
+    if (!foundRaw) {
+      throw new IOException("Unable to extract the contents of the email.");
+    }
+    Message message = jsonFactory.fromInputStream(new ByteArrayInputStream(reader.rest.toByteArray()),
+        StandardCharsets.UTF_8, Message.class);
+    return message.setRaw(null);
+  }
+
+  private boolean scan(OutputStream raw) throws IOException {
+    boolean foundRaw = false;
+    int b;
+    while ((b = in.read()) != -1) {
+      rest.write(b);
+      if (b == '"') {
+        boolean isRawKey = scanString();
+        if (isRawKey && depth == 1 && skipToStringValue()) {
+          try (InputStream decoded = new Base64InputStream(new StringValueInputStream())) {
+            decoded.transferTo(raw);
+          }
+          // The value is left empty.
+          rest.write('"');
+          rest.write('"');
+          foundRaw = true;
+        }
+      } else if (b == '{' || b == '[') {
+        ++depth;
+      } else if (b == '}' || b == ']') {
+        --depth;
+      }
+    }
+    return foundRaw;
+  }
+
+  /**
+   * Copies a string up to and including its closing quote.
+   *
+   * @return Whether the string is the key of the raw contents.
+   */
+  private boolean scanString() throws IOException {
+    int keyIndex = 0;
+    boolean keyMatches = true;
+    int b;
+    while ((b = readAndCopy()) != '"') {
+      if (b == '\\') {
+        readAndCopy();
+        keyMatches = false;
+      } else {
+        keyMatches &= keyIndex < RAW_KEY.length() && b == RAW_KEY.charAt(keyIndex);
+        ++keyIndex;
+      }
+    }
+    return keyMatches && keyIndex == RAW_KEY.length();
+  }
+
+  /**
+   * Copies the colon after a key, and consumes the opening quote of the value if the value is a string.
+   */
+  private boolean skipToStringValue() throws IOException {
+    int b = in.read();
+    while (b != -1 && (Character.isWhitespace(b) || b == ':')) {
+      rest.write(b);
+      b = in.read();
+    }
+    if (b == '"') {
+      return true;
+    }
+    // Not a string, e.g. null, so it is scanned as usual.
+    if (b != -1) {
+      in.unread(b);
+    }
+    return false;
+  }
+
+  private int readAndCopy() throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException("The message ended in the middle of a string.");
+    }
+    rest.write(b);
+    return b;
+  }
+
+  /**
+   * The characters of a string value, up to its closing quote.
+   */
+  private class StringValueInputStream extends InputStream {
+    private boolean ended;
+
+    @Override
+    public int read() throws IOException {
+      if (ended) {
+        return -1;
+      }
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException("The message ended in the middle of its contents.");
+      }
+      if (b == '"') {
+        ended = true;
+        return -1;
+      }
+      return b;
+    }
+  }
+}
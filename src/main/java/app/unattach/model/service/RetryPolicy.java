@@ -0,0 +1,188 @@
+package app.unattach.model.service;
+
+import app.unattach.utils.Logger;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides whether and when to retry Gmail calls that failed transiently, e.g. due to rate limiting.
+ *
+ * Retries back off exponentially with full jitter, and never sooner than the server asks for with Retry-After. Each
+ * call adds a fraction of a retry to a budget, and each retry spends a whole one, so that retries stay a small share of
+ * all calls, and a throttled Gmail is not hit harder than necessary.
+ *
+ * See https://developers.google.com/gmail/api/guides/handle-errors.
+ */
+public class RetryPolicy {
+  private static final Logger logger = Logger.get();
+  private static final Set<Integer> RETRYABLE_STATUS_CODES = Set.of(429, 500, 502, 503, 504);
+  private static final Set<String> RETRYABLE_FORBIDDEN_REASONS = Set.of("rateLimitExceeded", "userRateLimitExceeded");
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 6;
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 64_000;
+  // At most one retry for every 10 calls, once the initial budget is spent.
+  public static final double DEFAULT_RETRIES_PER_CALL = 0.1;
+  public static final double DEFAULT_MAX_RETRY_BUDGET = 100;
+
+  interface Call<T> {
+    T execute() throws IOException, InterruptedException;
+  }
+
+  interface Sleeper {
+    void sleep(long millis) throws InterruptedException;
+  }
+
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final double retriesPerCall;
+  private final double maxRetryBudget;
+  private final Random random;
+  private final Sleeper sleeper;
+  private double retryBudget;
+
+  public RetryPolicy() {
+    this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, DEFAULT_RETRIES_PER_CALL,
+        DEFAULT_MAX_RETRY_BUDGET, new Random(), Thread::sleep);
+  }
+
+  RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis, double retriesPerCall,
+              double maxRetryBudget, Random random, Sleeper sleeper) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.retriesPerCall = retriesPerCall;
+    this.maxRetryBudget = maxRetryBudget;
+    this.random = random;
+    this.sleeper = sleeper;
+    retryBudget = maxRetryBudget;
+  }
+
+  /**
+   * Executes the call, and retries it while it fails transiently.
+   */
+  <T> T execute(Call<T> call) throws IOException, InterruptedException {
+    return execute(call, true);
+  }
+
+  /**
+   * @param idempotent Whether the call can be repeated safely even if it failed without a response, in which case it
+   *                   may have been applied.
+   */
+  <T> T execute(Call<T> call, boolean idempotent) throws IOException, InterruptedException {
+    for (int attempt = 1; ; ++attempt) {
+      if (attempt == 1) {
+        recordCalls(1);
+      }
+      try {
+        return call.execute();
+      } catch (IOException e) {
+        boolean rejected = e instanceof HttpResponseException;
+        if (!(rejected || idempotent) || !isRetryable(e) || !canRetry(attempt)) {
+          throw e;
+        }
+        long retryAfterMillis = e instanceof HttpResponseException httpException ?
+            getRetryAfterMillis(httpException.getHeaders()) : 0;
+        backOff(attempt, retryAfterMillis, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Adds to the retry budget for the given number of calls, including each item of a batch.
+   */
+  synchronized void recordCalls(int count) {
+    retryBudget = Math.min(maxRetryBudget, retryBudget + count * retriesPerCall);
+  }
+
+  /**
+   * @param attempt The attempt that just failed, starting at 1.
+   * @return Whether there are attempts left, and the retry budget allows another one. If so, the retry is charged.
+   */
+  synchronized boolean canRetry(int attempt) {
+    if (attempt >= maxAttempts) {
+      return false;
+    }
+    if (retryBudget < 1) {
+      logger.warn("Not retrying, since the retry budget is spent.");
+      return false;
+    }
+    retryBudget -= 1;
+    return true;
+  }
+
+  /**
+   * Waits before the next attempt.
+   *
+   * @param attempt The attempt that just failed, starting at 1.
+   */
+  void backOff(int attempt, long retryAfterMillis, String reason) throws InterruptedException {
+    long millis = getBackoffMillis(attempt, retryAfterMillis);
+    logger.warn("Retrying in %d ms after attempt %d failed: %s", millis, attempt, reason);
+    sleeper.sleep(millis);
+  }
+
+  long getBackoffMillis(int attempt, long retryAfterMillis) {
+    long ceilingMillis = initialBackoffMillis << Math.min(attempt - 1, 30);
+    ceilingMillis = Math.min(maxBackoffMillis, Math.max(initialBackoffMillis, ceilingMillis));
+    long jitteredMillis;
+    synchronized (random) {
+      jitteredMillis = (long) (random.nextDouble() * ceilingMillis);
+    }
+    return Math.max(jitteredMillis, retryAfterMillis);
+  }
+
+  static boolean isRetryable(IOException e) {
+    if (e instanceof HttpResponseException httpException) {
+      return isRetryable(httpException.getStatusCode(), httpException.getContent());
+    }
+    // Timeouts, reset connections and the like.
+    return true;
+  }
+
+  static boolean isRetryable(GoogleJsonError error) {
+    List<GoogleJsonError.ErrorInfo> errors = error.getErrors();
+    String reason = errors == null || errors.isEmpty() ? null : errors.get(0).getReason();
+    return isRetryable(error.getCode(), reason);
+  }
+
+  private static boolean isRetryable(int statusCode, String reasonOrContent) {
+    if (RETRYABLE_STATUS_CODES.contains(statusCode)) {
+      return true;
+    }
+    return statusCode == 403 && reasonOrContent != null &&
+        RETRYABLE_FORBIDDEN_REASONS.stream().anyMatch(reasonOrContent::contains);
+  }
+
+  /**
+   * @return How long the server asked to wait, or 0 if it did not.
+   */
+  static long getRetryAfterMillis(HttpHeaders headers) {
+    String retryAfter = headers == null ? null : headers.getRetryAfter();
+    if (retryAfter == null || retryAfter.isBlank()) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+    } catch (NumberFormatException e) {
+      try {
+        ZonedDateTime retryTime = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+        return Math.max(0, Duration.between(ZonedDateTime.now(retryTime.getZone()), retryTime).toMillis());
+      } catch (DateTimeParseException e2) {
+        logger.warn("Ignoring an invalid Retry-After header: %s", retryAfter);
+        return 0;
+      }
+    }
+  }
+}
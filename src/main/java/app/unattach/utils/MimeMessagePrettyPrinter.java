@@ -2,22 +2,45 @@ package app.unattach.utils;
 
 import org.apache.commons.lang3.StringUtils;
 
-import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
 import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 
 public class MimeMessagePrettyPrinter {
+  /**
+   * Gets the multipart content of a part, or null if the part is not a multipart.
+   */
+  public interface MultipartGetter {
+    Multipart get(Part part) throws MessagingException, IOException;
+  }
+
   public static String prettyPrint(Part part) throws MessagingException, IOException {
+    return prettyPrint(part, MimeMessagePrettyPrinter::getMultipart);
+  }
+
+  /**
+   * Prints the structure with multiparts as given, e.g. as remembered from an earlier walk, so that no content has to
+   * be parsed again. Only headers are read.
+   */
+  public static String prettyPrint(Part part, MultipartGetter multipartGetter) throws MessagingException, IOException {
     StringBuilder sb = new StringBuilder();
-    prettyPrint(sb, part, 0, true);
+    prettyPrint(sb, part, 0, true, multipartGetter);
     return sb.toString();
   }
 
-  private static void prettyPrint(StringBuilder sb, Part parent, int depth, boolean lastChild)
-      throws MessagingException, IOException {
+  public static Multipart getMultipart(Part part) throws MessagingException, IOException {
+    return part.isMimeType("multipart/*") && part.getContent() instanceof Multipart multipart ? multipart : null;
+  }
+
+  private static void prettyPrint(StringBuilder sb, Part parent, int depth, boolean lastChild,
+                                  MultipartGetter multipartGetter) throws MessagingException, IOException {
     if (depth > 0) {
       sb.append("\n");
     }
@@ -28,15 +51,42 @@ public class MimeMessagePrettyPrinter {
     sb.append(parent.getContentType());
     sb.append(" (disposition: ").append(parent.getDisposition()).append(")");
     try {
-      Object content = parent.getContent();
-      if (content instanceof Multipart multipart) {
+      checkCharset(parent);
+      Multipart multipart = multipartGetter.get(parent);
+      if (multipart != null) {
         for (int i = 0; i < multipart.getCount(); ++i) {
-          BodyPart child = multipart.getBodyPart(i);
-          prettyPrint(sb, child, depth + 1, i == multipart.getCount() - 1);
+          prettyPrint(sb, multipart.getBodyPart(i), depth + 1, i == multipart.getCount() - 1, multipartGetter);
         }
       }
     } catch (UnsupportedEncodingException e) {
       sb.append(" [UnsupportedEncoding: ").append(e.getMessage()).append("]");
     }
   }
+
+  /**
+   * Checks that the text in the part can be decoded, without decoding it.
+   */
+  private static void checkCharset(Part part) throws MessagingException, UnsupportedEncodingException {
+    if (!part.isMimeType("text/*")) {
+      return;
+    }
+    String charset;
+    try {
+      charset = new ContentType(part.getContentType()).getParameter("charset");
+    } catch (ParseException e) {
+      return;
+    }
+    if (charset == null) {
+      return;
+    }
+    String javaCharset = MimeUtility.javaCharset(charset);
+    try {
+      if (Charset.isSupported(javaCharset)) {
+        return;
+      }
+    } catch (IllegalCharsetNameException e) {
+      // Not supported either.
+    }
+    throw new UnsupportedEncodingException(javaCharset);
+  }
 }
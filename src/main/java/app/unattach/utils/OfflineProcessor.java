@@ -3,15 +3,13 @@ package app.unattach.utils;
 import app.unattach.model.*;
 import app.unattach.model.attachmentstorage.FileUserStorage;
 import app.unattach.model.attachmentstorage.UserStorage;
+import app.unattach.model.service.GmailService;
 import app.unattach.view.Action;
 
 import javax.mail.MessagingException;
-import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.*;
 
 public class OfflineProcessor {
@@ -25,9 +23,8 @@ public class OfflineProcessor {
     String emlFilePath = args[0];
     logger.info("Attempting to process %s...", emlFilePath);
     File emlFile = new File(emlFilePath);
-    Session session = Session.getInstance(new Properties());
-    try (InputStream inputStream = new FileInputStream(emlFile)) {
-      MimeMessage mimeMessage = new MimeMessage(session, inputStream);
+    try (SpoolInputStream inputStream = SpoolInputStream.open(emlFile)) {
+      MimeMessage mimeMessage = GmailService.getMimeMessage(inputStream);
       UserStorage userStorage = new FileUserStorage();
       String gmailId = "placeholder-id";
       List<GmailLabel> labels = List.of();
@@ -46,11 +43,11 @@ public class OfflineProcessor {
       ProcessSettings processSettings = new ProcessSettings(processOption, targetDirectory, filenameSchema,
           true, idToLabel);
       logger.info("Using process settings: %s", processSettings);
-      Set<String> attachmentNames = new TreeSet<>();
-      logger.info("Mime structure before: " + MimeMessagePrettyPrinter.prettyPrint(mimeMessage));
-      EmailProcessor.process(userStorage, email, mimeMessage, processSettings, attachmentNames);
-      logger.info("Mime structure after: " + MimeMessagePrettyPrinter.prettyPrint(mimeMessage));
-      logger.info("Attachment names: " + attachmentNames);
+      EmailProcessor.Result result = EmailProcessor.process(email, mimeMessage, processSettings);
+      logger.info("Mime structure before: " + result.originalStructure());
+      UserStorage.awaitAll(EmailProcessor.saveAttachments(userStorage, email, processSettings, result.attachments()));
+      logger.info("Mime structure after: " + result.structure());
+      logger.info("Attachment names: " + result.getOriginalAttachmentNames());
     }
   }
 }
@@ -1,18 +1,13 @@
 package app.unattach.view;
 
-import app.unattach.model.DateFormat;
-
-import java.util.Date;
-
-public record DateCellValue(Date date,
-                            DateFormat dateFormat) implements Comparable<DateCellValue> {
+public record DateCellValue(long timestamp, String text) implements Comparable<DateCellValue> {
   @Override
   public int compareTo(DateCellValue other) {
-    return date.compareTo(other.date);
+    return Long.compare(timestamp, other.timestamp);
   }
 
   @Override
   public String toString() {
-    return dateFormat().format(date);
+    return text;
   }
 }
@@ -9,8 +9,6 @@ import javafx.beans.value.ObservableValue;
 import javafx.scene.control.TableColumn;
 import javafx.util.Callback;
 
-import java.util.Date;
-
 public class DateTableCellFactory
     implements Callback<TableColumn.CellDataFeatures<Email, DateCellValue>, ObservableValue<DateCellValue>> {
   private final Controller controller;
@@ -22,10 +20,9 @@ public class DateTableCellFactory
   @Override
   public ObservableValue<DateCellValue> call(TableColumn.CellDataFeatures<Email, DateCellValue> cellDataFeatures) {
     Email email = cellDataFeatures.getValue();
-    Date date = email.getDate();
     String pattern = controller.getConfig().getDateFormat();
     DateFormat dateFormat = DateFormat.fromPattern(pattern);
-    DateCellValue dateCellValue = new DateCellValue(date, dateFormat);
+    DateCellValue dateCellValue = new DateCellValue(email.getTimestamp(), email.getDateString(dateFormat));
     return new SimpleObjectProperty<>(dateCellValue);
   }
 }
\ No newline at end of file
@@ -72,8 +72,8 @@ public class FilenameSchemaController {
     );
     filenameSchemaTextField.textProperty().addListener(observable -> {
       String schema = filenameSchemaTextField.getText();
-      FilenameFactory filenameFactory = new FilenameFactory(schema, Set.of());
       try {
+        FilenameFactory filenameFactory = new FilenameFactory(schema, Set.of());
         String filename = filenameFactory.getFilename(email, 3, "the beach.jpg");
         filenameExampleLabel.setText(filename);
         if (schema.endsWith("${ATTACHMENT_NAME}") || schema.endsWith("${ATTACHMENT_EXTENSION}")) {
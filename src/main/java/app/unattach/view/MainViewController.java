@@ -2,17 +2,16 @@ package app.unattach.view;
 
 import app.unattach.controller.Controller;
 import app.unattach.controller.ControllerFactory;
-import app.unattach.controller.LongTask;
 import app.unattach.model.*;
 import app.unattach.model.service.GmailServiceException;
 import app.unattach.utils.Logger;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Platform;
-import javafx.beans.Observable;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
+import javafx.collections.transformation.SortedList;
 import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -31,6 +30,7 @@ import java.io.File;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
@@ -105,6 +105,7 @@ public class MainViewController {
   // Results view
   private static final String DESELECT_ALL_CAPTION = "Deselect all";
   private static final String SELECT_ALL_CAPTION = "Select all";
+  private static final int MAX_BREAKDOWN_ENTRIES = 10;
   @FXML
   private SubView resultsSubView;
   @FXML
@@ -145,7 +146,15 @@ public class MainViewController {
   private long bytesProcessed = 0;
   private long allBytesToProcess = 0;
   private boolean stopProcessingButtonPressed = false;
+  private ProcessEmailsTask processEmailsTask;
   private Timeline timeline;
+  // Appends the results found so far to the table while a search is running.
+  private Timeline searchResultsTimeline;
+  // The results shown in the table in the order they were found, and their summary in the caption. The table shows them
+  // through a sorted view, so sorting by a column leaves this list as it is.
+  private ObservableList<Email> resultEmails;
+  private ResultsSummary resultsSummary;
+  private final AtomicBoolean resultsCaptionUpdatePending = new AtomicBoolean();
 
   @FXML
   private void initialize() throws GmailServiceException {
@@ -154,6 +163,7 @@ public class MainViewController {
     signInAutomaticallyCheckMenuItem.setSelected(controller.getConfig().getSignInAutomatically());
     addMenuForHidingColumns();
     addMenuForDateFormats();
+    addResultsBreakdownTooltip();
     processEmbeddedCheckMenuItem.setSelected(controller.getConfig().getProcessEmbedded());
     if (!controller.getConfig().getRemoveOriginal()) {
       onTrashOriginalMenuItemPressed();
@@ -212,6 +222,15 @@ public class MainViewController {
         new SchedulePeriod("24 hours", 24 * 3600)
     )));
     schedulePeriodComboBox.getSelectionModel().select(5);
+    // The results of the last search are restored from the metadata index, without fetching their metadata again.
+    if (!controller.getSearchResults().isEmpty()) {
+      showSearchResults();
+      if (controller.getInterruptedSearchQuery() != null) {
+        searchProgressBarWithText.textProperty().setValue(
+            "Getting info about emails was interrupted after %d emails. Search again to resume."
+                .formatted(controller.getSearchResults().size()));
+      }
+    }
   }
 
   private void addMenuForHidingColumns() {
@@ -303,17 +322,20 @@ public class MainViewController {
 
   @FXML
   private void onSearchButtonPressed() {
-    onSearchButtonPressed(null);
+    onSearchButtonPressed(false, null);
   }
 
-  private void onSearchButtonPressed(Runnable successCallback) {
+  /**
+   * @param incremental Whether to only bring the results of the last search up to date, rather than search again.
+   */
+  private void onSearchButtonPressed(boolean incremental, Runnable successCallback) {
     disableControls();
-    resultsSubView.setText("Results");
+    clearResults();
     stopSearchButton.setDisable(false);
     stopSearchButtonPressed = false;
-    resultsTable.setItems(FXCollections.emptyObservableList());
-    AtomicInteger currentBatch = new AtomicInteger();
-    AtomicInteger numberOfBatches = new AtomicInteger();
+    AtomicInteger processedEmails = new AtomicInteger();
+    AtomicInteger numberOfEmails = new AtomicInteger();
+    AtomicInteger skippedEmails = new AtomicInteger();
 
     Task<Void> task = new Task<>() {
       @Override
@@ -321,26 +343,40 @@ public class MainViewController {
         updateProgress(0, 1);
         updateMessage("Getting info about emails...");
         String query = getQuery();
-        GetEmailMetadataTask longTask = controller.getSearchTask(query);
-        currentBatch.set(0);
-        numberOfBatches.set(longTask.getNumberOfSteps());
-        updateProgress(currentBatch.get(), numberOfBatches.get());
-        updateMessage(String.format("Getting info about emails (%s)...", getStatusString()));
-        while (!stopSearchButtonPressed && longTask.hasMoreSteps()) {
-          GetEmailMetadataTask.Result result = longTask.takeStep();
-          currentBatch.set(result.currentBatchNumber());
-          updateProgress(currentBatch.get(), numberOfBatches.get());
-          updateMessage(String.format("Getting info about emails (%s)...", getStatusString()));
+        try (GetEmailMetadataTask longTask =
+                 incremental ? controller.getSyncTask(query) : controller.getSearchTask(query)) {
+          Platform.runLater(MainViewController.this::startStreamingSearchResults);
+          processedEmails.set(0);
+          skippedEmails.set(0);
+          numberOfEmails.set(longTask.getNumberOfEmails());
+          updateProgress(processedEmails.get(), numberOfEmails.get());
+          updateMessage(String.format("Getting info about emails (%s)...", getStatusString(longTask)));
+          while (!stopSearchButtonPressed && longTask.hasMoreSteps()) {
+            GetEmailMetadataTask.Result result = longTask.takeStep();
+            processedEmails.set(result.processedEmails());
+            skippedEmails.set(result.skippedEmails());
+            numberOfEmails.set(longTask.getNumberOfEmails());
+            updateProgress(processedEmails.get(), numberOfEmails.get());
+            updateMessage(String.format("Getting info about emails (%s)...", getStatusString(longTask)));
+          }
         }
         return null;
       }
 
+      private String getStatusString(GetEmailMetadataTask longTask) {
+        String status = getStatusString();
+        return longTask.isSearchComplete() ? status : status + " (still searching)";
+      }
+
       private String getStatusString() {
-        if (numberOfBatches.get() == 0) {
+        if (numberOfEmails.get() == 0) {
           return "no emails matched the query";
         } else {
-          return String.format("completed %d of %d batches, %d%%",
-              currentBatch.get(), numberOfBatches.get(), 100 * currentBatch.get() / numberOfBatches.get());
+          String status = String.format("completed %d of %d emails, %d%%",
+              processedEmails.get(), numberOfEmails.get(), 100 * processedEmails.get() / numberOfEmails.get());
+          // Emails whose info couldn't be got are left out of the results.
+          return skippedEmails.get() == 0 ? status :
+              "%s, %d skipped as their info couldn't be got".formatted(status, skippedEmails.get());
         }
       }
 
@@ -348,14 +384,12 @@ public class MainViewController {
       protected void succeeded() {
         boolean successful = false;
         try {
-          String message = "Finished getting info about emails (%s).".formatted(getStatusString());
+          String message = stopSearchButtonPressed ?
+              "Stopped getting info about emails (%s). Search again to resume.".formatted(getStatusString()) :
+              "Finished getting info about emails (%s).".formatted(getStatusString());
           logger.info(message);
           updateMessage(message);
-          List<Email> emails = controller.getSearchResults();
-          ObservableList<Email> observableEmails = FXCollections.observableList(emails, email -> new Observable[]{email});
-          resultsTable.setItems(observableEmails);
-          updateResultsCaption();
-          observableEmails.addListener((ListChangeListener<? super Email>) change -> updateResultsCaption());
+          showSearchResults();
           successful = true;
         } catch (Throwable t) {
           String message = "Failed to get email info.";
@@ -371,6 +405,7 @@ public class MainViewController {
 
       @Override
       protected void failed() {
+        stopStreamingSearchResults();
         String message = "Failed to get email info.";
         updateMessage(message);
         reportError(message, getException());
@@ -384,20 +419,144 @@ public class MainViewController {
     new Thread(task).start();
   }
 
+  private void showSearchResults() {
+    if (searchResultsTimeline != null) {
+      stopStreamingSearchResults();
+      replaceChangedSearchResults(controller.getSearchResults());
+      return;
+    }
+    showResults(FXCollections.observableArrayList(controller.getSearchResults()));
+  }
+
+  /**
+   * Shows the results of the running search as they are found. They are appended a few times a second rather than one
+   * batch at a time, so that the table stays responsive however fast results come in.
+   */
+  private void startStreamingSearchResults() {
+    List<Email> emails = controller.getSearchResults();
+    showResults(FXCollections.observableArrayList());
+    searchResultsTimeline = new Timeline(new KeyFrame(Duration.millis(200), event -> appendNewSearchResults(emails)));
+    searchResultsTimeline.setCycleCount(Timeline.INDEFINITE);
+    searchResultsTimeline.play();
+  }
+
+  private void appendNewSearchResults(List<Email> emails) {
+    List<Email> newEmails;
+    // The search appends to the results on its own thread.
+    synchronized (emails) {
+      if (emails.size() <= resultEmails.size()) {
+        return;
+      }
+      newEmails = new ArrayList<>(emails.subList(resultEmails.size(), emails.size()));
+    }
+    resultEmails.addAll(newEmails);
+  }
+
+  /**
+   * A search that brought earlier results up to date may have replaced some of them after they were shown. The replaced
+   * emails are removed and their replacements appended, matching them by identity rather than position.
+   */
+  private void replaceChangedSearchResults(List<Email> emails) {
+    List<Email> currentEmails;
+    synchronized (emails) {
+      currentEmails = new ArrayList<>(emails);
+    }
+    Set<Email> currentEmailSet = Collections.newSetFromMap(new IdentityHashMap<>());
+    currentEmailSet.addAll(currentEmails);
+    Set<Email> shownEmailSet = Collections.newSetFromMap(new IdentityHashMap<>());
+    shownEmailSet.addAll(resultEmails);
+    resultEmails.removeIf(email -> !currentEmailSet.contains(email));
+    resultEmails.addAll(currentEmails.stream().filter(email -> !shownEmailSet.contains(email))
+        .collect(Collectors.toList()));
+  }
+
+  private void stopStreamingSearchResults() {
+    if (searchResultsTimeline == null) {
+      return;
+    }
+    searchResultsTimeline.stop();
+    searchResultsTimeline = null;
+    appendNewSearchResults(controller.getSearchResults());
+  }
+
+  /**
+   * Shows the emails in the table, sorted by the table's sort order, and keeps the caption up to date with their summary
+   * as emails are added, removed and (de)selected.
+   */
+  private void showResults(ObservableList<Email> emails) {
+    if (resultsSummary != null) {
+      resultEmails.forEach(resultsSummary::remove);
+    }
+    resultEmails = emails;
+    resultsSummary = new ResultsSummary(this::updateResultsCaption);
+    emails.forEach(resultsSummary::add);
+    ResultsSummary summary = resultsSummary;
+    emails.addListener((ListChangeListener<? super Email>) change -> {
+      while (change.next()) {
+        change.getRemoved().forEach(summary::remove);
+        change.getAddedSubList().forEach(summary::add);
+      }
+    });
+    SortedList<Email> sortedEmails = new SortedList<>(emails);
+    sortedEmails.comparatorProperty().bind(resultsTable.comparatorProperty());
+    resultsTable.setItems(sortedEmails);
+    updateResultsCaption();
+  }
+
+  /**
+   * Empties the table, and stops summarizing the emails that were in it.
+   */
+  private void clearResults() {
+    if (resultsSummary != null) {
+      resultEmails.forEach(resultsSummary::remove);
+    }
+    resultEmails = null;
+    resultsSummary = null;
+    resultsTable.setItems(FXCollections.emptyObservableList());
+    resultsSubView.setText("Results");
+  }
+
+  /**
+   * Shows the summary in the caption. Emails can change status on any thread, many at a time, so updates are
+   * coalesced into one on the FX thread.
+   */
   private void updateResultsCaption() {
+    if (!resultsCaptionUpdatePending.compareAndSet(false, true)) {
+      return;
+    }
     Platform.runLater(() -> {
-      int selected = 0, total = 0, selectedSizeInMegaBytes = 0, totalSizeInMegaBytes = 0;
-      for (Email email : resultsTable.getItems()) {
-        if (email.isSelected()) {
-          ++selected;
-          selectedSizeInMegaBytes += email.getSizeInMegaBytes();
-        }
-        ++total;
-        totalSizeInMegaBytes += email.getSizeInMegaBytes();
+      resultsCaptionUpdatePending.set(false);
+      if (resultsSummary == null) {
+        return;
+      }
+      ResultsSummary.Totals totals = resultsSummary.getTotals();
+      resultsSubView.setText(String.format("Results: selected %d/%d (%dMB/%dMB)", totals.selectedCount(),
+          totals.count(), toMegaBytes(totals.selectedSizeInBytes()), toMegaBytes(totals.sizeInBytes())));
+    });
+  }
+
+  /**
+   * Lists the labels and senders with the largest emails, to help decide what to process first.
+   */
+  private void addResultsBreakdownTooltip() {
+    Tooltip tooltip = new Tooltip();
+    tooltip.setOnShowing(event -> {
+      if (resultsSummary == null) {
+        tooltip.setText("No results.");
+        return;
       }
-      resultsSubView.setText(String.format("Results: selected %d/%d (%dMB/%dMB)",
-              selected, total, selectedSizeInMegaBytes, totalSizeInMegaBytes));
+      tooltip.setText("Largest labels (selected/total):\n" + getBreakdown(resultsSummary.getTotalsByLabel()) +
+          "\nLargest senders (selected/total):\n" + getBreakdown(resultsSummary.getTotalsBySender()));
     });
+    resultsSubView.setTooltip(tooltip);
+  }
+
+  private static String getBreakdown(Map<String, ResultsSummary.Totals> keyToTotals) {
+    return keyToTotals.entrySet().stream().limit(MAX_BREAKDOWN_ENTRIES).map(entry -> {
+      ResultsSummary.Totals totals = entry.getValue();
+      return String.format("  %s: %d/%d emails, %dMB/%dMB", entry.getKey(), totals.selectedCount(), totals.count(),
+          toMegaBytes(totals.selectedSizeInBytes()), toMegaBytes(totals.sizeInBytes()));
+    }).collect(Collectors.joining("\n", "", "\n"));
   }
 
   private void reportError(String message, Throwable t) {
@@ -520,77 +679,89 @@ public class MainViewController {
     SortedMap<String, String> idToLabel = controller.getIdToLabel();
     ProcessSettings processSettings = new ProcessSettings(processOption, targetDirectory, filenameSchema,
         addMetadataCheckMenuItem.isSelected(), idToLabel);
-    processEmail(emailsToProcess, 0, 0, processSettings);
-  }
-
-  private void showNoEmailsAlert() {
-    Alert alert = new Alert(Alert.AlertType.WARNING);
-    alert.setTitle("No emails selected");
-    alert.setHeaderText(null);
-    alert.setContentText("Please select some or all emails in the search results. You can de/select an individual " +
-        "email by clicking on the checkbox in its selected row. Alternatively, you can de/select all emails by " +
-        "clicking on the checkbox in the table header.");
-    alert.showAndWait();
-  }
-
-  private void processEmail(List<Email> emailsToProcess, int nextEmailIndex, int failed, ProcessSettings processSettings) {
-    String processingStatusString = getProcessingStatusString(emailsToProcess, nextEmailIndex, failed);
-    if (stopProcessingButtonPressed || nextEmailIndex >= emailsToProcess.size()) {
-      String message = "Processing stopped (%s).".formatted(processingStatusString);
-      logger.info(message);
-      processingProgressBarWithText.textProperty().setValue(message);
-      resetControls();
-      if (enableScheduleCheckBox.isSelected()) {
-        scheduleNextRun(processSettings.processOption().action());
-      }
-      return;
-    }
-    Email email = emailsToProcess.get(nextEmailIndex);
-    logger.info("Processing email with subject '%s'...", email.getSubject());
     processingProgressBarWithText.textProperty().setValue(
-        "Processing selected emails (%s)...".formatted(processingStatusString));
+        "Processing selected emails (%s)...".formatted(getProcessingStatusString(emailsToProcess, 0, 0)));
+    processEmailsTask = controller.getProcessTask(emailsToProcess, processSettings);
+    ProcessEmailsTask longTask = processEmailsTask;
+    AtomicInteger processed = new AtomicInteger();
+    AtomicInteger failed = new AtomicInteger();
 
-    Task<ProcessEmailResult> task = new Task<>() {
+    Task<Void> task = new Task<>() {
       @Override
-      protected ProcessEmailResult call() throws Exception {
-        LongTask<ProcessEmailResult> longTask = controller.getProcessTask(email, processSettings);
-        // This is 'if' and not 'while', because longTask always has a single step.
-        if (!stopProcessingButtonPressed && longTask.hasMoreSteps()) {
-          return longTask.takeStep();
+      protected Void call() throws Exception {
+        try (longTask) {
+          while (longTask.hasMoreSteps()) {
+            ProcessEmailsTask.Result result = longTask.takeStep();
+            Platform.runLater(() -> onEmailProcessed(emailsToProcess, result, processed, failed));
+          }
         }
         return null;
       }
 
       @Override
       protected void succeeded() {
-        ProcessEmailResult processEmailResult = getValue();
-        if (processEmailResult != null) {
-          if (processEmailResult.newId() != null) {
-            email.setGmailId(processEmailResult.newId());
-          }
-          bytesProcessed += email.getSizeInBytes();
-          processingProgressBarWithText.progressProperty().setValue(1.0 * bytesProcessed / allBytesToProcess);
-          resultsTable.refresh();
-        }
-        processEmail(emailsToProcess, nextEmailIndex + 1, failed, processSettings);
+        finishProcessing(emailsToProcess, processed.get(), failed.get(), processSettings);
       }
 
       @Override
       protected void failed() {
-        email.setStatus(EmailStatus.FAILED);
-        email.setProcessLog(getException().getMessage());
-        resultsTable.refresh();
         reportError("Failed to process selected emails.", getException());
-        processEmail(emailsToProcess, nextEmailIndex + 1, failed + 1, processSettings);
+        finishProcessing(emailsToProcess, processed.get(), failed.get(), processSettings);
       }
     };
 
     new Thread(task).start();
   }
 
-  private String getProcessingStatusString(List<Email> emailsToProcess, int nextEmailIndex, int failed) {
+  private void showNoEmailsAlert() {
+    Alert alert = new Alert(Alert.AlertType.WARNING);
+    alert.setTitle("No emails selected");
+    alert.setHeaderText(null);
+    alert.setContentText("Please select some or all emails in the search results. You can de/select an individual " +
+        "email by clicking on the checkbox in its selected row. Alternatively, you can de/select all emails by " +
+        "clicking on the checkbox in the table header.");
+    alert.showAndWait();
+  }
+
+  private void onEmailProcessed(List<Email> emailsToProcess, ProcessEmailsTask.Result result,
+                                AtomicInteger processed, AtomicInteger failed) {
+    Email email = result.email();
+    processed.incrementAndGet();
+    if (result.successful()) {
+      ProcessEmailResult processEmailResult = result.processEmailResult();
+      if (processEmailResult.newId() != null) {
+        email.setGmailId(processEmailResult.newId());
+      }
+      bytesProcessed += email.getSizeInBytes();
+      processingProgressBarWithText.progressProperty().setValue(1.0 * bytesProcessed / allBytesToProcess);
+    } else {
+      failed.incrementAndGet();
+      email.setStatus(EmailStatus.FAILED);
+      email.setProcessLog(result.throwable().getMessage());
+      reportError("Failed to process selected emails.", result.throwable());
+    }
+    resultsTable.refresh();
+    if (!stopProcessingButtonPressed) {
+      processingProgressBarWithText.textProperty().setValue("Processing selected emails (%s)...".formatted(
+          getProcessingStatusString(emailsToProcess, processed.get(), failed.get())));
+    }
+  }
+
+  private void finishProcessing(List<Email> emailsToProcess, int processed, int failed,
+                                ProcessSettings processSettings) {
+    processEmailsTask = null;
+    String message = "Processing stopped (%s).".formatted(getProcessingStatusString(emailsToProcess, processed, failed));
+    logger.info(message);
+    processingProgressBarWithText.textProperty().setValue(message);
+    resetControls();
+    if (enableScheduleCheckBox.isSelected()) {
+      scheduleNextRun(processSettings.processOption().action());
+    }
+  }
+
+  private String getProcessingStatusString(List<Email> emailsToProcess, int processed, int failed) {
     return String.format("processed %d of %d, %dMB / %dMB, %d%% by size, %d failed",
-        nextEmailIndex, emailsToProcess.size(), toMegaBytes(bytesProcessed), toMegaBytes(allBytesToProcess),
+        processed, emailsToProcess.size(), toMegaBytes(bytesProcessed), toMegaBytes(allBytesToProcess),
         allBytesToProcess == 0 ? 0 : 100 * bytesProcessed / allBytesToProcess, failed);
   }
 
@@ -602,6 +773,9 @@ public class MainViewController {
   private void onStopProcessingButtonPressed() {
     stopProcessingButton.setDisable(true);
     stopProcessingButtonPressed = true;
+    if (processEmailsTask != null) {
+      processEmailsTask.stop();
+    }
   }
 
   private List<Email> getEmailsToProcess() {
@@ -806,7 +980,7 @@ public class MainViewController {
 
   @FXML
   private void onSchedule(Action action) {
-    onSearchButtonPressed(() -> {
+    onSearchButtonPressed(true, () -> {
       toggleAllEmailsCheckBox.setSelected(true);
       switch (action) {
         case DOWNLOAD -> onDownloadButtonPressed();
@@ -32,6 +32,7 @@ import static app.unattach.view.Action.*;
 import static org.junit.jupiter.api.Assertions.*;
 
 public class GmailServiceTest {
+  private FakeGmailService service;
   private Controller controller;
 
   @BeforeEach
@@ -51,10 +52,18 @@ public class GmailServiceTest {
           mixedBefore.getId(), "2-mixed-after",
           noBodyBefore.getId(), "3-no-body-after"
       );
-      GmailServiceManager gmailServiceManager =
-          new FakeGmailServiceManager(emailAddress, idToLabel, messages, beforeIdToAfterId);
+      service = new FakeGmailService(emailAddress, idToLabel, messages, beforeIdToAfterId);
+      GmailServiceManager gmailServiceManager = new GmailServiceManager() {
+        @Override
+        public GmailService signIn() {
+          return service;
+        }
+
+        @Override
+        public void signOut() {}
+      };
       Config config = new BaseConfig();
-      Model model = new LiveModel(config, userStorage, gmailServiceManager);
+      Model model = new LiveModel(config, userStorage, gmailServiceManager, new MetadataIndex());
       controller = new DefaultController(model);
       assertEquals(controller.signIn(), emailAddress);
     } catch (IOException e) {
@@ -136,6 +145,79 @@ public class GmailServiceTest {
     testDownloadAndOrRemove(tempDir, "PDF attachment", REMOVE, true, "Google.pdf");
   }
 
+  @Test
+  void test_getProcessTask_SHOULD_process_all_emails_WHEN_processing_several_at_once(@TempDir Path tempDir)
+      throws GmailServiceException, LongTaskException {
+    List<Email> emails = searchForEmailsThroughController("");
+    assertEquals(3, emails.size());
+    ProcessSettings processSettings = getProcessSettings(tempDir, DOWNLOAD_AND_REMOVE, true);
+    Set<String> filenames = new TreeSet<>();
+    try (ProcessEmailsTask task = controller.getProcessTask(emails, processSettings)) {
+      while (task.hasMoreSteps()) {
+        ProcessEmailsTask.Result result = task.takeStep();
+        assertTrue(result.successful());
+        assertNotNull(result.processEmailResult().newId());
+        assertEquals(EmailStatus.PROCESSED, result.email().getStatus());
+        filenames.addAll(result.processEmailResult().filenames());
+      }
+    }
+    assertEquals(Set.of("logo-256.png", "logo-attached.png", "logo-embedded.png", "Google.pdf"), filenames);
+    // Each email is only reported once the removal of its original was sent.
+    List<Email> emailsAfter = searchForEmailsThroughController("");
+    assertEquals(3, emailsAfter.size());
+    Set<String> originalIds = emails.stream().map(Email::getGmailId).collect(Collectors.toSet());
+    assertTrue(emailsAfter.stream().map(Email::getGmailId).noneMatch(originalIds::contains));
+  }
+
+  @Test
+  void test_getSyncTask_SHOULD_only_replace_changed_emails_WHEN_results_were_synced_before(@TempDir Path tempDir)
+      throws GmailServiceException, LongTaskException {
+    List<Email> emails = new ArrayList<>(searchForEmailsThroughController(""));
+    assertEquals(3, emails.size());
+    assertEquals(emails, syncEmailsThroughController(""));
+
+    Email processedEmail = emails.get(0);
+    ProcessSettings processSettings = getProcessSettings(tempDir, DOWNLOAD_AND_REMOVE, true);
+    ProcessEmailResult result = processEmailsThroughController(List.of(processedEmail), processSettings).get(0);
+    // As done by the view after processing.
+    processedEmail.setGmailId(result.newId());
+
+    List<Email> emailsAfter = syncEmailsThroughController("");
+    assertEquals(3, emailsAfter.size());
+    assertEquals(result.newId(), emailsAfter.get(0).getGmailId());
+    assertNotSame(processedEmail, emailsAfter.get(0));
+    assertSame(emails.get(1), emailsAfter.get(1));
+    assertSame(emails.get(2), emailsAfter.get(2));
+  }
+
+  @Test
+  void test_getSyncTask_SHOULD_drop_changed_email_until_next_sync_WHEN_its_metadata_fails()
+      throws GmailServiceException, LongTaskException {
+    List<Email> emails = new ArrayList<>(searchForEmailsThroughController(""));
+    Email changedEmail = emails.get(0);
+    service.addLabel(changedEmail.getGmailId(), "INBOX");
+    service.setMetadataFailing(changedEmail.getGmailId(), true);
+    // Otherwise the whole batch fails, which fails the sync.
+    service.addLabel(emails.get(1).getGmailId(), "INBOX");
+
+    GetEmailMetadataTask.Result result = null;
+    try (GetEmailMetadataTask syncTask = controller.getSyncTask("")) {
+      while (syncTask.hasMoreSteps()) {
+        result = syncTask.takeStep();
+      }
+    }
+    assertEquals(1, result.skippedEmails());
+    List<Email> emailsWithoutChanged = controller.getSearchResults();
+    assertEquals(2, emailsWithoutChanged.size());
+    assertEquals(emails.get(1).getGmailId(), emailsWithoutChanged.get(0).getGmailId());
+    assertSame(emails.get(2), emailsWithoutChanged.get(1));
+
+    service.setMetadataFailing(changedEmail.getGmailId(), false);
+    List<Email> emailsAfter = syncEmailsThroughController("");
+    assertEquals(3, emailsAfter.size());
+    assertTrue(emailsAfter.stream().anyMatch(email -> email.getGmailId().equals(changedEmail.getGmailId())));
+  }
+
   private void testDownloadAndOrRemove(Path tempDir, String query, Action action, boolean processEmbedded,
                                        String... attachments)
       throws GmailServiceException, LongTaskException, IOException, MessagingException {
@@ -210,27 +292,49 @@ public class GmailServiceTest {
   @SuppressWarnings("SameParameterValue")
   private List<ProcessEmailResult> processEmails(Path tempDir, String query, Action action, boolean processEmbedded)
       throws GmailServiceException, LongTaskException {
+    ProcessSettings processSettings = getProcessSettings(tempDir, action, processEmbedded);
+    return processEmailsThroughController(searchForEmailsThroughController(query), processSettings);
+  }
+
+  private List<ProcessEmailResult> processEmailsThroughController(List<Email> emails, ProcessSettings processSettings)
+      throws LongTaskException {
     List<ProcessEmailResult> results = new ArrayList<>();
-    for (Email email : searchForEmailsThroughController(query)) {
-      String downloadedLabelId = controller.getOrCreateDownloadedLabelId();
-      String removedLabelId = controller.getOrCreateRemovedLabelId();
-      ProcessOption processOption = new ProcessOption(action, processEmbedded, true,
-          true, downloadedLabelId, removedLabelId);
-      String filenameSchema = "attachments/${ATTACHMENT_NAME}";
-      SortedMap<String, String> idToLabel = controller.getIdToLabel();
-      ProcessSettings processSettings =
-          new ProcessSettings(processOption, tempDir.toFile(), filenameSchema, true, idToLabel);
-      LongTask<ProcessEmailResult> task = controller.getProcessTask(email, processSettings);
-      results.add(task.takeStep());
+    try (ProcessEmailsTask task = controller.getProcessTask(emails, processSettings)) {
+      while (task.hasMoreSteps()) {
+        ProcessEmailsTask.Result result = task.takeStep();
+        assertTrue(result.successful());
+        results.add(result.processEmailResult());
+      }
     }
     return results;
   }
 
+  private ProcessSettings getProcessSettings(Path tempDir, Action action, boolean processEmbedded) {
+    String downloadedLabelId = controller.getOrCreateDownloadedLabelId();
+    String removedLabelId = controller.getOrCreateRemovedLabelId();
+    ProcessOption processOption = new ProcessOption(action, processEmbedded, true,
+        true, downloadedLabelId, removedLabelId);
+    String filenameSchema = "attachments/${ATTACHMENT_NAME}";
+    SortedMap<String, String> idToLabel = controller.getIdToLabel();
+    return new ProcessSettings(processOption, tempDir.toFile(), filenameSchema, true, idToLabel);
+  }
+
   private List<Email> searchForEmailsThroughController(@SuppressWarnings("SameParameterValue") String query)
       throws GmailServiceException, LongTaskException {
-    GetEmailMetadataTask searchTask = controller.getSearchTask(query);
-    while (searchTask.hasMoreSteps()) {
-      searchTask.takeStep();
+    try (GetEmailMetadataTask searchTask = controller.getSearchTask(query)) {
+      while (searchTask.hasMoreSteps()) {
+        searchTask.takeStep();
+      }
+    }
+    return controller.getSearchResults();
+  }
+
+  private List<Email> syncEmailsThroughController(@SuppressWarnings("SameParameterValue") String query)
+      throws GmailServiceException, LongTaskException {
+    try (GetEmailMetadataTask syncTask = controller.getSyncTask(query)) {
+      while (syncTask.hasMoreSteps()) {
+        syncTask.takeStep();
+      }
     }
     return controller.getSearchResults();
   }
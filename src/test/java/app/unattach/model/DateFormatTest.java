@@ -0,0 +1,79 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DateFormatTest {
+  private static final int THREADS = 8;
+  private static final int TIMESTAMPS = 2000;
+
+  @Test
+  void test_format_SHOULD_match_SimpleDateFormat_WHEN_given_same_pattern() {
+    long[] timestamps = getTimestamps();
+    for (DateFormat dateFormat : DateFormat.values()) {
+      SimpleDateFormat simpleDateFormat = new SimpleDateFormat(dateFormat.getPattern());
+      for (long timestamp : timestamps) {
+        assertEquals(simpleDateFormat.format(new Date(timestamp)), dateFormat.format(timestamp));
+      }
+    }
+  }
+
+  @Test
+  void test_format_SHOULD_give_same_results_WHEN_called_from_many_threads() throws Exception {
+    long[] timestamps = getTimestamps();
+    DateFormat[] dateFormats = DateFormat.values();
+    String[][] expected = new String[dateFormats.length][timestamps.length];
+    for (int i = 0; i < dateFormats.length; ++i) {
+      for (int j = 0; j < timestamps.length; ++j) {
+        expected[i][j] = dateFormats[i].format(timestamps[j]);
+      }
+    }
+    List<Email> emails = new ArrayList<>(timestamps.length);
+    for (long timestamp : timestamps) {
+      emails.add(new Email("id", List.of(), "from@example.com", "to@example.com", "subject", timestamp, 1,
+          List.of()));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; ++thread) {
+        int seed = thread;
+        futures.add(executor.submit(() -> {
+          Random random = new Random(seed);
+          for (int k = 0; k < 50_000; ++k) {
+            int i = random.nextInt(dateFormats.length);
+            int j = random.nextInt(timestamps.length);
+            assertEquals(expected[i][j], dateFormats[i].format(timestamps[j]));
+            // Threads switch the format that each email keeps, which must never mix up formats or dates.
+            assertEquals(expected[i][j], emails.get(j).getDateString(dateFormats[i]));
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static long[] getTimestamps() {
+    Random random = new Random(42);
+    long[] timestamps = new long[TIMESTAMPS];
+    for (int i = 0; i < timestamps.length; ++i) {
+      // Between 1990 and 2040.
+      timestamps[i] = 631152000000L + (long) (random.nextDouble() * 1577836800000L);
+    }
+    return timestamps;
+  }
+}
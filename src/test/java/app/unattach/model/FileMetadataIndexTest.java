@@ -0,0 +1,97 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileMetadataIndexTest {
+  @Test
+  void test_load_SHOULD_restore_index_WHEN_index_was_saved(@TempDir Path tempDir) {
+    Path path = tempDir.resolve("index");
+    FileMetadataIndex index = new FileMetadataIndex(path);
+    index.reset("user@example.com");
+    index.setHistoryId("42");
+    index.put(createMetadata("1"));
+    index.put(createMetadata("2"));
+    index.put(createMetadata("3"));
+    index.removeAll(List.of("2"));
+    index.setLastResults("has:attachment", List.of("3", "1"), true);
+    index.flush();
+
+    FileMetadataIndex loadedIndex = new FileMetadataIndex(path);
+    assertEquals("user@example.com", loadedIndex.getEmailAddress());
+    assertEquals("42", loadedIndex.getHistoryId());
+    assertEquals("has:attachment", loadedIndex.getLastQuery());
+    assertTrue(loadedIndex.isLastSearchComplete());
+    assertEquals(List.of(createMetadata("3"), createMetadata("1")), loadedIndex.getLastResults());
+    assertNull(loadedIndex.get("2"));
+  }
+
+  @Test
+  void test_load_SHOULD_ignore_last_record_WHEN_it_was_cut_off(@TempDir Path tempDir) throws IOException {
+    Path path = tempDir.resolve("index");
+    FileMetadataIndex index = new FileMetadataIndex(path);
+    index.reset("user@example.com");
+    index.put(createMetadata("1"));
+    index.flush();
+    Files.writeString(path, "{\"type\":\"put\",\"id\":\"2\",\"lab", StandardOpenOption.APPEND);
+
+    FileMetadataIndex loadedIndex = new FileMetadataIndex(path);
+    assertEquals(createMetadata("1"), loadedIndex.get("1"));
+    assertNull(loadedIndex.get("2"));
+    loadedIndex.put(createMetadata("3"));
+    loadedIndex.flush();
+
+    FileMetadataIndex reloadedIndex = new FileMetadataIndex(path);
+    assertEquals(createMetadata("1"), reloadedIndex.get("1"));
+    assertEquals(createMetadata("3"), reloadedIndex.get("3"));
+  }
+
+  @Test
+  void test_load_SHOULD_restore_partial_results_WHEN_search_was_interrupted(@TempDir Path tempDir) {
+    Path path = tempDir.resolve("index");
+    FileMetadataIndex index = new FileMetadataIndex(path);
+    index.reset("user@example.com");
+    index.setHistoryId("42");
+    index.setLastResults("has:attachment", List.of(), false);
+    index.put(createMetadata("1"));
+    index.put(createMetadata("2"));
+    index.addLastResults(List.of("1", "2"));
+    index.put(createMetadata("3"));
+    index.addLastResults(List.of("3"));
+    index.flush();
+
+    FileMetadataIndex loadedIndex = new FileMetadataIndex(path);
+    assertEquals("has:attachment", loadedIndex.getLastQuery());
+    assertFalse(loadedIndex.isLastSearchComplete());
+    assertEquals(List.of(createMetadata("1"), createMetadata("2"), createMetadata("3")),
+        loadedIndex.getLastResults());
+  }
+
+  @Test
+  void test_setHistoryId_SHOULD_forget_last_results_WHEN_mailbox_changed() {
+    MetadataIndex index = new MetadataIndex();
+    index.reset("user@example.com");
+    index.setHistoryId("42");
+    index.put(createMetadata("1"));
+    index.setLastResults("has:attachment", List.of("1"), true);
+    index.setHistoryId("42");
+    assertEquals("has:attachment", index.getLastQuery());
+    index.setHistoryId("43");
+    assertNull(index.getLastQuery());
+    assertEquals(List.of(), index.getLastResults());
+    assertEquals(createMetadata("1"), index.get("1"));
+  }
+
+  private static EmailMetadata createMetadata(String gmailId) {
+    return new EmailMetadata(gmailId, List.of(new GmailLabel("INBOX", "INBOX")), "a@example.com", null,
+        "Subject " + gmailId, 1234567890000L, 1024, List.of("a.pdf", "b.png"));
+  }
+}
@@ -126,6 +126,16 @@ public class FilenameFactoryTest {
     testGetFilename("${CUSTOM_LABEL_NAMES}", "a%b@.jpg", "Friends__Files");
   }
 
+  @Test
+  public void testNormalizedNonBmpAttachmentName() {
+    testGetFilename("${ATTACHMENT_NAME}", "a\uD83D\uDE00b.jpg", "a__b.jpg");
+  }
+
+  @Test
+  public void testRepeatedPlaceholder() {
+    testGetFilename("${ID}/${RAW_ATTACHMENT_NAME}-${ID}", "a$1.jpg", "id3/a$1.jpg-id3");
+  }
+
   @Test
   public void testUnknownPlaceholder() {
     assertThrows(InvalidParameterException.class, () ->
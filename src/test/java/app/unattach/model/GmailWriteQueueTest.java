@@ -0,0 +1,56 @@
+package app.unattach.model;
+
+import app.unattach.model.attachmentstorage.FileUserStorage;
+import app.unattach.model.service.GmailService;
+import app.unattach.model.service.GmailServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GmailWriteQueueTest {
+  private final List<String> calls = new ArrayList<>();
+
+  @Test
+  void test_addLabel_SHOULD_send_batch_WHEN_it_is_full() {
+    GmailWriteQueue writeQueue = new GmailWriteQueue(createService(), new FileUserStorage(), 2);
+    writeQueue.addLabel("a", "a", "LABEL_1");
+    assertFalse(writeQueue.isSettled("a"));
+    writeQueue.addLabel("b", "b-new", "LABEL_1");
+    assertEquals(List.of("addLabel [a, b-new]"), calls);
+    assertTrue(writeQueue.isSettled("a"));
+    assertTrue(writeQueue.isSettled("b"));
+    assertNull(writeQueue.takeFailure("a"));
+  }
+
+  @Test
+  void test_flush_SHOULD_report_failure_against_each_email_of_batch_WHEN_removal_fails() {
+    GmailWriteQueue writeQueue = new GmailWriteQueue(createService(), new FileUserStorage());
+    writeQueue.addLabel("a", "a-new", "LABEL_1");
+    writeQueue.removeMessage("a", "a", false);
+    writeQueue.removeMessage("b", "b", false);
+    assertTrue(calls.isEmpty());
+    writeQueue.flush();
+    assertEquals(List.of("addLabel [a-new]", "removeMessages [a, b]"), calls);
+    assertTrue(writeQueue.isSettled("a"));
+    assertTrue(writeQueue.isSettled("b"));
+    assertNotNull(writeQueue.takeFailure("a"));
+    assertNotNull(writeQueue.takeFailure("b"));
+    assertNull(writeQueue.takeFailure("b"));
+  }
+
+  private GmailService createService() {
+    return (GmailService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{GmailService.class},
+        (proxy, method, args) -> {
+          calls.add(method.getName() + " " + (args[0] instanceof List ? args[0] : List.of(args[0])));
+          if (method.getName().startsWith("remove")) {
+            throw new GmailServiceException(new IOException("Rate limit exceeded."));
+          }
+          return null;
+        });
+  }
+}
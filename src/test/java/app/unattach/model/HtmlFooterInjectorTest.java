@@ -0,0 +1,28 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HtmlFooterInjectorTest {
+  private static final String FOOTER = "<hr /><p>Footer</p>";
+
+  @Test
+  void test_inject_SHOULD_splice_footer_before_body_end_WHEN_document_is_well_formed() {
+    String html = "<HTML><Body class=x><P>Text<br>more</P>\n<!-- </body> -->" +
+        "<script>if (a < b) document.write('</body>');</script></BODY >\n</html>\n<!-- end -->\n";
+    String expected = "<HTML><Body class=x><P>Text<br>more</P>\n<!-- </body> -->" +
+        "<script>if (a < b) document.write('</body>');</script>" + FOOTER + "</BODY >\n</html>\n<!-- end -->\n";
+    assertEquals(expected, HtmlFooterInjector.inject(html, FOOTER));
+  }
+
+  @Test
+  void test_inject_SHOULD_fall_back_to_parsing_WHEN_body_end_is_missing_or_misplaced() {
+    assertEquals(-1, HtmlFooterInjector.findBodyEnd("<div>Fragment</div>"));
+    assertEquals(-1, HtmlFooterInjector.findBodyEnd("<body>Text</body><p>After</p></html>"));
+    assertEquals(-1, HtmlFooterInjector.findBodyEnd("<body><!-- unterminated </body>"));
+    String html = HtmlFooterInjector.inject("<div>Fragment</div>", FOOTER);
+    assertTrue(html.indexOf("Fragment") < html.indexOf("Footer"));
+    assertTrue(html.indexOf("Footer") < html.indexOf("</body>"));
+  }
+}
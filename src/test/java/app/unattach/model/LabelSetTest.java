@@ -0,0 +1,32 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LabelSetTest {
+  @Test
+  void test_of_SHOULD_share_label_set_WHEN_labels_are_equal_in_any_order() {
+    LabelSet labelSet1 = LabelSet.of(List.of(new GmailLabel("INBOX", "INBOX"), new GmailLabel("LABEL_1", "Bills")));
+    LabelSet labelSet2 = LabelSet.of(List.of(new GmailLabel("LABEL_1", "Bills"), new GmailLabel("INBOX", "INBOX")));
+    assertSame(labelSet1, labelSet2);
+    assertEquals("Bills, INBOX", labelSet1.getNamesDelimited());
+  }
+
+  @Test
+  void test_of_SHOULD_return_empty_set_WHEN_labels_are_null() {
+    assertSame(LabelSet.EMPTY, LabelSet.of(null));
+    assertEquals("", LabelSet.EMPTY.getNamesDelimited());
+  }
+
+  @Test
+  void test_of_SHOULD_not_share_label_set_WHEN_pool_was_cleared() {
+    List<GmailLabel> labels = List.of(new GmailLabel("INBOX", "INBOX"));
+    LabelSet labelSet = LabelSet.of(labels);
+    LabelSet.clearPool();
+    assertNotSame(labelSet, LabelSet.of(labels));
+    assertSame(LabelSet.EMPTY, LabelSet.of(List.of()));
+  }
+}
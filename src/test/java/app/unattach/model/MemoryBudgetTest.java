@@ -0,0 +1,28 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoryBudgetTest {
+  @Test
+  void test_tryAcquire_SHOULD_admit_emails_while_they_fit_WHEN_budget_is_shared() {
+    MemoryBudget memoryBudget = new MemoryBudget(100);
+    assertTrue(memoryBudget.tryAcquire(40));
+    assertTrue(memoryBudget.tryAcquire(60));
+    assertFalse(memoryBudget.tryAcquire(1));
+    memoryBudget.release(40);
+    assertTrue(memoryBudget.tryAcquire(30));
+    assertEquals(90, memoryBudget.getUsed());
+  }
+
+  @Test
+  void test_tryAcquire_SHOULD_admit_email_alone_WHEN_it_exceeds_budget() {
+    MemoryBudget memoryBudget = new MemoryBudget(100);
+    assertTrue(memoryBudget.tryAcquire(10));
+    assertFalse(memoryBudget.tryAcquire(500));
+    memoryBudget.release(10);
+    assertTrue(memoryBudget.tryAcquire(500));
+    assertFalse(memoryBudget.tryAcquire(1));
+  }
+}
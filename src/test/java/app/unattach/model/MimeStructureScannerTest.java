@@ -0,0 +1,88 @@
+package app.unattach.model;
+
+import app.unattach.view.Action;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static app.unattach.model.GmailLabel.NO_LABEL;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MimeStructureScannerTest {
+  private static final String RELATED = """
+      Content-Type: multipart/related;\r
+       boundary="related"\r
+      \r
+      --related\r
+      Content-Type: text/html; charset="UTF-8"\r
+      \r
+      <p>HTML</p>\r
+      --related\r
+      Content-Type: image/png; name="logo.png"\r
+      Content-Disposition: inline; filename="logo.png"\r
+      Content-Transfer-Encoding: base64\r
+      \r
+      iVBORw0KGgo=\r
+      --related--\r
+      """;
+  private static final String EMAIL = """
+      From: a@example.com\r
+      Content-Type: multipart/mixed; boundary="mixed"\r
+      \r
+      --mixed\r
+      """ + RELATED + """
+      --mixed\r
+      Content-Type: application/pdf\r
+      Content-Disposition: attachment; filename="report.pdf"\r
+      \r
+      JVBERi0xLjQK\r
+      --mixed--\r
+      """;
+
+  @Test
+  void test_scan_SHOULD_index_parts_WHEN_multiparts_are_nested() throws IOException {
+    MimeStructureScanner.Structure structure = scan(EMAIL);
+    assertTrue(structure.complete());
+    List<MimeStructureScanner.RawPart> parts = structure.parts();
+    assertEquals(List.of("multipart/mixed", "multipart/related", "text/html", "image/png", "application/pdf"),
+        parts.stream().map(MimeStructureScanner.RawPart::mimeType).toList());
+    assertEquals(List.of(-1, 0, 1, 1, 0), parts.stream().map(MimeStructureScanner.RawPart::parent).toList());
+    MimeStructureScanner.RawPart related = parts.get(1);
+    assertEquals(RELATED, EMAIL.substring((int) related.offset(), (int) related.end()));
+    assertEquals("inline", parts.get(3).disposition());
+    assertEquals("logo.png", parts.get(3).filename());
+    MimeStructureScanner.RawPart pdf = parts.get(4);
+    assertEquals("JVBERi0xLjQK", EMAIL.substring((int) pdf.bodyOffset(), (int) pdf.end() - 2));
+    assertEquals("report.pdf", pdf.filename());
+  }
+
+  @Test
+  void test_mayHaveAttachments_SHOULD_rule_out_email_WHEN_it_only_has_inline_images() throws IOException {
+    String email = """
+        Content-Type: multipart/mixed; boundary="mixed"\r
+        \r
+        --mixed\r
+        """ + RELATED + """
+        --mixed--\r
+        """;
+    MimeStructureScanner.Structure structure = scan(email);
+    assertFalse(EmailProcessor.mayHaveAttachments(structure, createProcessOption(false)));
+    assertTrue(EmailProcessor.mayHaveAttachments(structure, createProcessOption(true)));
+    assertTrue(EmailProcessor.mayHaveAttachments(scan(EMAIL), createProcessOption(false)));
+    // Without the closing delimiter, the scan can't be trusted.
+    MimeStructureScanner.Structure truncated = scan(email.substring(0, email.indexOf("--mixed--")));
+    assertFalse(truncated.complete());
+    assertTrue(EmailProcessor.mayHaveAttachments(truncated, createProcessOption(false)));
+  }
+
+  private static MimeStructureScanner.Structure scan(String email) throws IOException {
+    return MimeStructureScanner.scan(new ByteArrayInputStream(email.getBytes(StandardCharsets.ISO_8859_1)));
+  }
+
+  private static ProcessOption createProcessOption(boolean processEmbedded) {
+    return new ProcessOption(Action.DOWNLOAD_AND_REMOVE, processEmbedded, false, false, NO_LABEL.id(), NO_LABEL.id());
+  }
+}
@@ -0,0 +1,72 @@
+package app.unattach.model;
+
+import app.unattach.model.service.GmailService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class PartContentTest {
+  @Test
+  void test_writeTo_SHOULD_decode_attachments_WHEN_email_is_spooled(@TempDir Path tempDir)
+      throws IOException, MessagingException {
+    // Larger than a chunk, so that decoding carries over between chunks.
+    byte[] base64Content = createContent(3 * 1024 * 1024 + 7);
+    byte[] binaryContent = createContent(100_000);
+    MimeMultipart multipart = new MimeMultipart();
+    multipart.addBodyPart(createAttachment(base64Content, "base64"));
+    multipart.addBodyPart(createAttachment(binaryContent, "binary"));
+    MimeMessage mimeMessage = new MimeMessage(Session.getInstance(new Properties()));
+    mimeMessage.setContent(multipart);
+    mimeMessage.saveChanges();
+    File file = tempDir.resolve("email.eml").toFile();
+    try (OutputStream outputStream = new FileOutputStream(file)) {
+      mimeMessage.writeTo(outputStream);
+    }
+
+    try (SpoolInputStream inputStream = SpoolInputStream.open(file)) {
+      Multipart spooledMultipart = (Multipart) GmailService.getMimeMessage(inputStream).getContent();
+      assertArrayEquals(base64Content, write(spooledMultipart.getBodyPart(0)));
+      assertArrayEquals(binaryContent, write(spooledMultipart.getBodyPart(1)));
+    }
+  }
+
+  private static byte[] createContent(int size) {
+    byte[] content = new byte[size];
+    new Random(1337).nextBytes(content);
+    return content;
+  }
+
+  private static MimeBodyPart createAttachment(byte[] content, String encoding) throws MessagingException {
+    MimeBodyPart bodyPart = new MimeBodyPart();
+    bodyPart.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+    bodyPart.setHeader("Content-Transfer-Encoding", encoding);
+    bodyPart.setDisposition(Part.ATTACHMENT);
+    return bodyPart;
+  }
+
+  private static byte[] write(Part part) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    new PartContent(part).writeTo(Channels.newChannel(outputStream));
+    return outputStream.toByteArray();
+  }
+}
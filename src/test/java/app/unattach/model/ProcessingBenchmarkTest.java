@@ -0,0 +1,143 @@
+package app.unattach.model;
+
+import app.unattach.utils.Logger;
+import app.unattach.view.Action;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Times the CPU-bound steps of processing an email, to compare their speed before and after a change. Each operation is
+ * run a number of times to warm up, and then timed over the same number of runs.
+ *
+ * Skipped by default. Run with: mvn test -Dtest=ProcessingBenchmarkTest -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class ProcessingBenchmarkTest {
+  private static final Logger logger = Logger.get();
+  private static final String FOOTER = "<hr /><p>Removed attachments: a.pdf, b.zip</p>";
+  private static final int NUMBER_OF_ATTACHMENTS = 20;
+
+  private interface Operation {
+    Object run() throws Exception;
+  }
+
+  // Keeps the results of the operations reachable, so that the JIT can't skip computing them.
+  private static volatile int sink;
+
+  @Test
+  void benchmark_HtmlFooterInjector() throws Exception {
+    String html = createTableHtml(4 * 1024 * 1024);
+    time("HtmlFooterInjector.inject, 4MB", 20, () -> HtmlFooterInjector.inject(html, FOOTER));
+    time("Jsoup parse and serialise, 4MB", 20, () -> {
+      Document document = Jsoup.parse(html);
+      document.body().append(FOOTER);
+      return document.toString();
+    });
+  }
+
+  @Test
+  void benchmark_FilenameFactory() throws Exception {
+    FilenameFactory filenameFactory = new FilenameFactory(FilenameFactory.DEFAULT_SCHEMA, Set.of());
+    Email email = createEmail();
+    time("FilenameFactory.getFilename, 1000 attachments", 200, () -> {
+      FilenameFactory.EmailFilenames emailFilenames = filenameFactory.forEmail(email);
+      int hash = 0;
+      for (int i = 0; i < 1000; ++i) {
+        hash += emailFilenames.getFilename(i, "Quarterly report (final) " + i + ".pdf").hashCode();
+      }
+      return hash;
+    });
+  }
+
+  @Test
+  void benchmark_EmailProcessor(@TempDir Path tempDir) throws Exception {
+    byte[] rawEmail = createRawEmail(createTableHtml(1024 * 1024));
+    Session session = Session.getInstance(new Properties());
+    ProcessOption processOption = new ProcessOption(Action.DOWNLOAD_AND_REMOVE, false, false, false, null, null);
+    ProcessSettings processSettings = new ProcessSettings(processOption, tempDir.toFile(),
+        FilenameFactory.DEFAULT_SCHEMA, true, new TreeMap<>());
+    FilenameFactory filenameFactory = EmailProcessor.createFilenameFactory(processSettings);
+    Email email = createEmail();
+    // Processing changes the message, so each run parses it again; the parsing is timed on its own for comparison.
+    time("Parse email, 1MB HTML and " + NUMBER_OF_ATTACHMENTS + " attachments", 50,
+        () -> new MimeMessage(session, new ByteArrayInputStream(rawEmail)));
+    time("Parse and process email, 1MB HTML and " + NUMBER_OF_ATTACHMENTS + " attachments", 50, () -> {
+      MimeMessage mimeMessage = new MimeMessage(session, new ByteArrayInputStream(rawEmail));
+      return EmailProcessor.process(email, mimeMessage, processSettings, filenameFactory).attachments();
+    });
+  }
+
+  private static void time(String name, int runs, Operation operation) throws Exception {
+    for (int i = 0; i < runs; ++i) {
+      sink += Objects.hashCode(operation.run());
+    }
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < runs; ++i) {
+      sink += Objects.hashCode(operation.run());
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+    logger.info("%s: %.3f ms per run over %d runs.", name, elapsedNanos / 1e6 / runs, runs);
+  }
+
+  private static String createTableHtml(int minLength) {
+    StringBuilder html = new StringBuilder("<html><head><style>td { padding: 2px; }</style></head><body><table>");
+    for (int row = 0; html.length() < minLength; ++row) {
+      html.append("<tr><td class=\"name\">Item ").append(row).append("</td><td><a href=\"https://example.com/")
+          .append(row).append("\">Link</a></td><td>").append(row * 37 % 1000).append(".00</td></tr>\n");
+    }
+    return html.append("</table></body></html>\n").toString();
+  }
+
+  private static byte[] createRawEmail(String html) throws MessagingException, IOException {
+    MimeMultipart alternative = new MimeMultipart("alternative");
+    MimeBodyPart textPart = new MimeBodyPart();
+    textPart.setText("See the table in the HTML version.", "utf-8");
+    alternative.addBodyPart(textPart);
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setContent(html, "text/html; charset=utf-8");
+    alternative.addBodyPart(htmlPart);
+    MimeMultipart mixed = new MimeMultipart("mixed");
+    MimeBodyPart alternativePart = new MimeBodyPart();
+    alternativePart.setContent(alternative);
+    mixed.addBodyPart(alternativePart);
+    Random random = new Random(1337);
+    for (int i = 0; i < NUMBER_OF_ATTACHMENTS; ++i) {
+      byte[] content = new byte[64 * 1024];
+      random.nextBytes(content);
+      MimeBodyPart attachment = new MimeBodyPart();
+      attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/octet-stream")));
+      attachment.setFileName("attachment " + i + ".bin");
+      attachment.setDisposition(MimeBodyPart.ATTACHMENT);
+      mixed.addBodyPart(attachment);
+    }
+    MimeMessage mimeMessage = new MimeMessage(Session.getInstance(new Properties()));
+    mimeMessage.setSubject("Benchmark");
+    mimeMessage.setContent(mixed);
+    mimeMessage.saveChanges();
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    mimeMessage.writeTo(outputStream);
+    return outputStream.toByteArray();
+  }
+
+  private static Email createEmail() {
+    List<GmailLabel> labels = List.of(new GmailLabel("INBOX", "INBOX"), new GmailLabel("LABEL_1", "Reports"));
+    return new Email("17b2c3d4e5f60718", labels, "\"Reports\" <reports@example.com>", "to@example.com",
+        "Quarterly report", 1501545600000L, 2 * 1024 * 1024, List.of("attachment 0.bin"));
+  }
+}
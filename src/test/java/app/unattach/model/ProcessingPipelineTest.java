@@ -0,0 +1,41 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProcessingPipelineTest {
+  private static class Item implements AutoCloseable {
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+  }
+
+  @Test
+  void test_close_SHOULD_close_queued_and_running_items() throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    ProcessingPipeline<Item> pipeline = new ProcessingPipeline<Item>("test")
+        .addStage("block", 1, 2, item -> {
+          started.countDown();
+          Thread.sleep(Long.MAX_VALUE);
+        })
+        .addStage("never", 1, 1, item -> {});
+    Item running = new Item();
+    Item queued1 = new Item();
+    Item queued2 = new Item();
+    assertTrue(pipeline.offer(running));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    assertTrue(pipeline.offer(queued1));
+    assertTrue(pipeline.offer(queued2));
+    pipeline.close();
+    for (Item item : new Item[]{running, queued1, queued2}) {
+      assertTrue(item.closed.await(10, TimeUnit.SECONDS));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package app.unattach.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ResultsSummaryTest {
+  private static final GmailLabel INBOX = new GmailLabel("INBOX", "INBOX");
+  private static final GmailLabel BILLS = new GmailLabel("LABEL_1", "Bills");
+
+  @Test
+  void test_summary_SHOULD_follow_additions_selections_and_removals() {
+    AtomicInteger changes = new AtomicInteger();
+    ResultsSummary summary = new ResultsSummary(changes::incrementAndGet);
+    Email email1 = createEmail("a@example.com", 100, INBOX);
+    Email email2 = createEmail("Bob <b@example.com>", 200, INBOX, BILLS);
+    Email email3 = createEmail("b@example.com", 400, BILLS);
+    summary.add(email1);
+    summary.add(email2);
+    summary.add(email3);
+    assertEquals(new ResultsSummary.Totals(3, 700, 0, 0), summary.getTotals());
+
+    email2.setStatus(EmailStatus.TO_PROCESS);
+    email3.setStatus(EmailStatus.TO_PROCESS);
+    // Only changes into or out of the selection count.
+    email3.setStatus(EmailStatus.TO_PROCESS);
+    email1.setStatus(EmailStatus.FAILED);
+    assertEquals(new ResultsSummary.Totals(3, 700, 2, 600), summary.getTotals());
+    assertEquals(5, changes.get());
+
+    Map<String, ResultsSummary.Totals> labelToTotals = summary.getTotalsByLabel();
+    assertEquals(List.of("Bills", "INBOX"), List.copyOf(labelToTotals.keySet()));
+    assertEquals(new ResultsSummary.Totals(2, 600, 2, 600), labelToTotals.get("Bills"));
+    assertEquals(new ResultsSummary.Totals(2, 300, 1, 200), labelToTotals.get("INBOX"));
+    Map<String, ResultsSummary.Totals> senderToTotals = summary.getTotalsBySender();
+    assertEquals(List.of("b@example.com", "a@example.com"), List.copyOf(senderToTotals.keySet()));
+    assertEquals(new ResultsSummary.Totals(2, 600, 2, 600), senderToTotals.get("b@example.com"));
+
+    summary.remove(email3);
+    email3.setStatus(EmailStatus.NOT_SELECTED);
+    assertEquals(new ResultsSummary.Totals(2, 300, 1, 200), summary.getTotals());
+    assertEquals(new ResultsSummary.Totals(1, 200, 1, 200), summary.getTotalsByLabel().get("Bills"));
+
+    summary.remove(email2);
+    assertEquals(List.of("INBOX"), List.copyOf(summary.getTotalsByLabel().keySet()));
+    assertEquals(new ResultsSummary.Totals(1, 100, 0, 0), summary.getTotals());
+  }
+
+  private static Email createEmail(String from, int sizeInBytes, GmailLabel... labels) {
+    return new Email("id", List.of(labels), from, "to@example.com", "subject", 1501545600000L, sizeInBytes,
+        List.of());
+  }
+}
@@ -0,0 +1,86 @@
+package app.unattach.model;
+
+import app.unattach.model.service.GmailService;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpooledMimeMessageTest {
+  // A multipart with a preamble and an epilogue, the latter of which re-serialising would drop.
+  private static final String KEPT_PART = """
+      Content-Type: multipart/related; boundary="inner"\r
+      \r
+      Preamble of the inner multipart.\r
+      --inner\r
+      Content-Type: text/html; charset="UTF-8"\r
+      \r
+      <p>HTML</p>\r
+      --inner\r
+      Content-Type: image/png; name="logo.png"\r
+      Content-Transfer-Encoding: base64\r
+      \r
+      iVBORw0KGgo=\r
+      --inner--\r
+      Epilogue of the inner multipart.""";
+  private static final String EMAIL = """
+      From: a@example.com\r
+      Subject: Test\r
+      MIME-Version: 1.0\r
+      Content-Type: multipart/mixed; boundary="outer"\r
+      \r
+      --outer\r
+      Content-Type: text/plain; charset="UTF-8"\r
+      \r
+      Text\r
+      --outer\r
+      """ + KEPT_PART + """
+      \r
+      --outer\r
+      Content-Type: application/pdf; name="removed.pdf"\r
+      Content-Disposition: attachment; filename="removed.pdf"\r
+      Content-Transfer-Encoding: base64\r
+      \r
+      JVBERi0xLjQK\r
+      --outer--\r
+      """;
+
+  @Test
+  void test_writeTo_SHOULD_copy_untouched_parts_verbatim_WHEN_parts_were_changed(@TempDir Path tempDir)
+      throws IOException, MessagingException {
+    Path path = tempDir.resolve("email.eml");
+    Files.writeString(path, EMAIL, StandardCharsets.ISO_8859_1);
+    try (SpoolInputStream spoolInputStream = SpoolInputStream.open(path.toFile())) {
+      SpooledMimeMessage mimeMessage = SpooledMimeMessage.parse(spoolInputStream);
+      Multipart outer = (Multipart) mimeMessage.getContent();
+      // Walking into the kept multipart parses it, as EmailProcessor does, which makes plain javax.mail regenerate it.
+      outer.getBodyPart(1).getContent();
+      outer.removeBodyPart(2);
+      BodyPart textPart = outer.getBodyPart(0);
+      textPart.setContent("Changed", "text/plain; charset=utf-8");
+      mimeMessage.markChanged(textPart);
+      mimeMessage.saveChanges();
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      mimeMessage.writeTo(outputStream);
+
+      String output = outputStream.toString(StandardCharsets.ISO_8859_1);
+      assertTrue(output.contains(KEPT_PART));
+      assertFalse(output.contains("removed.pdf"));
+      MimeMessage writtenMessage = GmailService.getMimeMessage(outputStream.toByteArray());
+      Multipart writtenOuter = (Multipart) writtenMessage.getContent();
+      assertEquals(2, writtenOuter.getCount());
+      assertEquals("Changed", writtenOuter.getBodyPart(0).getContent());
+      assertEquals(2, ((Multipart) writtenOuter.getBodyPart(1).getContent()).getCount());
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package app.unattach.model.attachmentstorage;
+
+import app.unattach.model.Email;
+import app.unattach.model.EmailProcessor;
+import app.unattach.model.ProcessOption;
+import app.unattach.model.ProcessSettings;
+import app.unattach.view.Action;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ArchiveUserStorageTest {
+  @Test
+  void test_open_SHOULD_read_backups_WHEN_segment_was_flushed(@TempDir Path tempDir)
+      throws IOException, MessagingException {
+    File targetDirectory = tempDir.toFile();
+    ArchiveUserStorage userStorage = new ArchiveUserStorage(new FileUserStorage());
+    userStorage.saveMessage(createMessage("First"), targetDirectory, "1.eml");
+    userStorage.saveAttachment(channel -> channel.write(ByteBuffer.wrap("PDF".getBytes(StandardCharsets.UTF_8))),
+        targetDirectory, "a/b.pdf", 1_000_000_000_000L);
+    // Saving an entry again starts a new segment.
+    userStorage.saveMessage(createMessage("Second"), targetDirectory, "1.eml");
+    userStorage.flush();
+
+    try (Stream<Path> files = Files.list(tempDir)) {
+      List<String> filenames = files.map(path -> path.getFileName().toString()).sorted().toList();
+      // Two segments, the index, and the directory of the attachment.
+      assertEquals(4, filenames.size());
+      assertTrue(filenames.stream().noneMatch(filename -> filename.endsWith(".part")));
+    }
+    // Attachments aren't archived, so that the links to them in stripped emails work.
+    assertEquals("PDF", Files.readString(tempDir.resolve("a/b.pdf")));
+    assertThrows(FileNotFoundException.class, () -> userStorage.open(targetDirectory, "a/b.pdf"));
+    try (InputStream inputStream = new ArchiveUserStorage(new FileUserStorage()).open(targetDirectory, "1.eml")) {
+      String email = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+      assertTrue(email.contains("Second"));
+    }
+  }
+
+  @Test
+  void test_saveAttachments_SHOULD_save_files_linked_from_footer_WHEN_backups_are_archived(@TempDir Path tempDir)
+      throws IOException, MessagingException {
+    ArchiveUserStorage userStorage = new ArchiveUserStorage(new FileUserStorage());
+    ProcessOption processOption = new ProcessOption(Action.DOWNLOAD_AND_REMOVE, false, true, false, null, null);
+    ProcessSettings processSettings = new ProcessSettings(processOption, tempDir.toFile(),
+        "attachments/${ATTACHMENT_NAME}", true, new TreeMap<>());
+    Email email = new Email("id1", List.of(), "from@example.com", "to@example.com", "subject", 1501545600000L,
+        1000, List.of("report.pdf"));
+    EmailProcessor.Result result = EmailProcessor.process(email, createMessageWithAttachment(), processSettings);
+    userStorage.saveMessageAsync(createMessage("Backup"), tempDir.toFile(), "id1.eml").join();
+    CompletableFuture.allOf(EmailProcessor.saveAttachments(userStorage, email, processSettings, result.attachments())
+        .toArray(CompletableFuture[]::new)).join();
+    userStorage.flush();
+
+    String html = ((Multipart) result.mimeMessage().getContent()).getBodyPart(0).getContent().toString();
+    Path attachmentPath = tempDir.resolve("attachments/report.pdf").toAbsolutePath();
+    assertTrue(html.contains("filename: " + attachmentPath + ", "));
+    assertTrue(html.contains("<a href='file:///" + attachmentPath + "'>"));
+    assertEquals("PDF", Files.readString(attachmentPath));
+  }
+
+  private static MimeMessage createMessageWithAttachment() throws IOException, MessagingException {
+    MimeMultipart multipart = new MimeMultipart();
+    MimeBodyPart htmlPart = new MimeBodyPart();
+    htmlPart.setContent("<html><body><p>See the report.</p></body></html>", "text/html; charset=utf-8");
+    multipart.addBodyPart(htmlPart);
+    MimeBodyPart attachmentPart = new MimeBodyPart();
+    attachmentPart.setDataHandler(new DataHandler(new ByteArrayDataSource("PDF".getBytes(StandardCharsets.UTF_8),
+        "application/pdf")));
+    attachmentPart.setFileName("report.pdf");
+    attachmentPart.setDisposition(Part.ATTACHMENT);
+    multipart.addBodyPart(attachmentPart);
+    MimeMessage mimeMessage = new MimeMessage(Session.getInstance(new Properties()));
+    mimeMessage.setContent(multipart);
+    mimeMessage.saveChanges();
+    // Attachments are saved from the raw content of their parts, as parsed.
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    mimeMessage.writeTo(outputStream);
+    return new MimeMessage(Session.getInstance(new Properties()), new ByteArrayInputStream(outputStream.toByteArray()));
+  }
+
+  private static MimeMessage createMessage(String text) throws MessagingException {
+    MimeMessage mimeMessage = new MimeMessage(Session.getInstance(new Properties()));
+    mimeMessage.setText(text);
+    mimeMessage.saveChanges();
+    return mimeMessage;
+  }
+}
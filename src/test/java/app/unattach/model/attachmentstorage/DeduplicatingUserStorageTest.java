@@ -0,0 +1,52 @@
+package app.unattach.model.attachmentstorage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeduplicatingUserStorageTest {
+  @Test
+  void test_saveAttachment_SHOULD_link_duplicates_WHEN_content_was_saved_before(@TempDir Path tempDir)
+      throws IOException {
+    Path indexPath = tempDir.resolve("attachments.index");
+    File targetDirectory = tempDir.resolve("target").toFile();
+    UserStorage userStorage = new DeduplicatingUserStorage(indexPath);
+    userStorage.saveAttachment(content("invoice"), targetDirectory, "a/invoice.pdf", 1_000_000_000_000L);
+    userStorage.saveAttachment(content("other"), targetDirectory, "b/other.pdf", 1_000_000_000_000L);
+    // Duplicates are also found by a later run, through the index.
+    userStorage = new DeduplicatingUserStorage(indexPath);
+    userStorage.saveAttachment(content("invoice"), targetDirectory, "c/invoice.pdf", 1_500_000_000_000L);
+
+    Path first = targetDirectory.toPath().resolve("a/invoice.pdf");
+    Path duplicate = targetDirectory.toPath().resolve("c/invoice.pdf");
+    assertEquals("invoice", Files.readString(duplicate));
+    assertTrue(Files.isSameFile(first, duplicate));
+    assertFalse(Files.isSameFile(first, targetDirectory.toPath().resolve("b/other.pdf")));
+    assertFalse(Files.exists(duplicate.resolveSibling("invoice.pdf.part")));
+  }
+
+  @Test
+  void test_saveAttachment_SHOULD_write_in_full_WHEN_earlier_copy_was_changed(@TempDir Path tempDir)
+      throws IOException {
+    File targetDirectory = tempDir.toFile();
+    UserStorage userStorage = new DeduplicatingUserStorage(tempDir.resolve("attachments.index"));
+    userStorage.saveAttachment(content("invoice"), targetDirectory, "a.pdf", 1_000_000_000_000L);
+    Files.writeString(tempDir.resolve("a.pdf"), "edited");
+    userStorage.saveAttachment(content("invoice"), targetDirectory, "b.pdf", 1_000_000_000_000L);
+
+    assertEquals("edited", Files.readString(tempDir.resolve("a.pdf")));
+    assertEquals("invoice", Files.readString(tempDir.resolve("b.pdf")));
+  }
+
+  private static AttachmentContent content(String text) {
+    return channel -> channel.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+  }
+}
@@ -0,0 +1,53 @@
+package app.unattach.model.attachmentstorage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindUserStorageTest {
+  @Test
+  void test_saveAttachmentAsync_SHOULD_save_in_background_WHEN_flushed(@TempDir Path tempDir)
+      throws IOException, InterruptedException {
+    File targetDirectory = tempDir.toFile();
+    UserStorage userStorage = new WriteBehindUserStorage(new FileUserStorage(), 1, 2);
+    CountDownLatch latch = new CountDownLatch(1);
+    CompletableFuture<Void> save = userStorage.saveAttachmentAsync(channel -> {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      channel.write(ByteBuffer.wrap("PDF".getBytes(StandardCharsets.UTF_8)));
+    }, targetDirectory, "a.pdf", 1_000_000_000_000L);
+    assertFalse(save.isDone());
+    latch.countDown();
+    userStorage.flush();
+
+    assertTrue(save.isDone());
+    assertEquals("PDF", Files.readString(tempDir.resolve("a.pdf")));
+  }
+
+  @Test
+  void test_await_SHOULD_rethrow_failure_WHEN_save_failed(@TempDir Path tempDir) {
+    UserStorage userStorage = new WriteBehindUserStorage(new FileUserStorage(), 1, 2);
+    CompletableFuture<Void> save = userStorage.saveAttachmentAsync(channel -> {
+      throw new IOException("Disk full.");
+    }, tempDir.toFile(), "a.pdf", 1_000_000_000_000L);
+
+    IOException e = assertThrows(IOException.class, () -> UserStorage.await(save));
+    assertEquals("Disk full.", e.getMessage());
+    assertThrows(IOException.class, () -> userStorage.saveAttachment(channel -> {
+      throw new IOException("Disk full.");
+    }, tempDir.toFile(), "b.pdf", 1_000_000_000_000L));
+  }
+}
@@ -1,6 +1,7 @@
 package app.unattach.model.service;
 
 import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.services.gmail.model.Label;
 import com.google.api.services.gmail.model.Message;
 import com.google.api.services.gmail.model.MessagePart;
@@ -10,15 +11,25 @@ import org.json.JSONObject;
 import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 
+import static org.apache.commons.codec.binary.Base64.encodeBase64URLSafeString;
+
 public class FakeGmailService implements GmailService {
+  private static final int SEARCH_PAGE_SIZE = 2;
+
   private final String emailAddress;
   private final SortedMap<String, String> idToLabel;
-  private final SortedMap<String, Message> idToMessage = new TreeMap<>();
+  private final SortedMap<String, Message> idToMessage = Collections.synchronizedSortedMap(new TreeMap<>());
   private final Map<String, String> beforeIdToAfterId;
+  // The history ID of the mailbox is the number of changes made to it so far.
+  private final List<Change> history = Collections.synchronizedList(new ArrayList<>());
+  private final Set<String> failingMetadataIds = Collections.synchronizedSet(new HashSet<>());
+
+  private record Change(String messageId, boolean removed) {}
 
   public FakeGmailService(String emailAddress, SortedMap<String, String> idToLabel, List<Message> messages,
                           Map<String, String> beforeIdToAfterId) {
@@ -39,6 +50,12 @@ public class FakeGmailService implements GmailService {
       message.setLabelIds(labelIds);
     }
     labelIds.add(labelId);
+    history.add(new Change(messageIds, false));
+  }
+
+  @Override
+  public void addLabel(List<String> messageIds, String labelId) {
+    messageIds.forEach(messageId -> addLabel(messageId, labelId));
   }
 
   @Override
@@ -46,6 +63,13 @@ public class FakeGmailService implements GmailService {
       throws GmailServiceException {
     for (String messageId : messageIds) {
       try {
+        if (failingMetadataIds.contains(messageId)) {
+          GoogleJsonError error = new GoogleJsonError();
+          error.setCode(500);
+          error.setMessage("Backend Error");
+          callback.onFailure(error, null);
+          continue;
+        }
         Message message = idToMessage.get(messageId);
         Message result = filterKeys(message, "id", "internalDate", "labelIds", "payload", "sizeEstimate");
         callback.onSuccess(result, null);
@@ -55,6 +79,17 @@ public class FakeGmailService implements GmailService {
     }
   }
 
+  /**
+   * Makes getting the metadata of the email fail, or succeed again.
+   */
+  public void setMetadataFailing(String messageId, boolean failing) {
+    if (failing) {
+      failingMetadataIds.add(messageId);
+    } else {
+      failingMetadataIds.remove(messageId);
+    }
+  }
+
   @Override
   public Label createLabel(Label labelIn) {
     String id = "LABEL_" + idToLabel.size();
@@ -67,6 +102,12 @@ public class FakeGmailService implements GmailService {
   public void removeMessage(String messageId, boolean permanentlyRemove) {
     // TODO: implement 'trash'
     idToMessage.remove(messageId);
+    history.add(new Change(messageId, true));
+  }
+
+  @Override
+  public void removeMessages(List<String> messageIds, boolean permanentlyRemove) {
+    messageIds.forEach(messageId -> removeMessage(messageId, permanentlyRemove));
   }
 
   @Override
@@ -74,6 +115,23 @@ public class FakeGmailService implements GmailService {
     return emailAddress;
   }
 
+  @Override
+  public String getHistoryId() {
+    return String.valueOf(history.size());
+  }
+
+  @Override
+  public MailboxChanges getChangesSince(String startHistoryId) {
+    Set<String> changedMessageIds = new HashSet<>();
+    Set<String> removedMessageIds = new HashSet<>();
+    List<Change> changes = new ArrayList<>(history);
+    for (Change change : changes.subList(Integer.parseInt(startHistoryId), changes.size())) {
+      (change.removed() ? removedMessageIds : changedMessageIds).add(change.messageId());
+    }
+    changedMessageIds.removeAll(removedMessageIds);
+    return new MailboxChanges(changedMessageIds, removedMessageIds, String.valueOf(changes.size()));
+  }
+
   @Override
   public SortedMap<String, String> getIdToLabel() {
     return new TreeMap<>(idToLabel);
@@ -85,17 +143,26 @@ public class FakeGmailService implements GmailService {
   }
 
   @Override
-  public Message getRawMessage(String messageId) throws GmailServiceException {
-    return filterKeys(idToMessage.get(messageId),
+  public Message getRawMessage(String messageId, File file) throws GmailServiceException {
+    Message message = filterKeys(idToMessage.get(messageId),
         "historyId", "id", "internalDate", "raw", "sizeEstimate", "snippet", "threadId");
+    // The message is read from its JSON the way the live service reads it from the response.
+    try (InputStream json = new ByteArrayInputStream(message.toString().getBytes(StandardCharsets.UTF_8));
+         OutputStream outputStream = new FileOutputStream(file)) {
+      return RawMessageReader.read(json, outputStream, message.getFactory());
+    } catch (IOException e) {
+      throw new GmailServiceException(e);
+    }
   }
 
   @Override
-  public Message insertMessage(Message message) throws GmailServiceException {
+  public Message insertMessage(Message message, MimeMessage mimeMessage) throws GmailServiceException {
     String afterId = beforeIdToAfterId.get(message.getId());
     Message afterMessage = message.clone().setId(afterId);
     try {
-      MimeMessage mimeMessage = GmailService.getMimeMessage(afterMessage);
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      mimeMessage.writeTo(outputStream);
+      afterMessage.setRaw(encodeBase64URLSafeString(outputStream.toByteArray()));
       List<MessagePartHeader> messagePartHeaders = Collections.list(mimeMessage.getAllHeaders()).stream()
           .map(this::headerToMessagePartHeader).collect(Collectors.toList());
       MessagePart payload = new MessagePart();
@@ -108,9 +175,15 @@ public class FakeGmailService implements GmailService {
       throw new GmailServiceException(e);
     }
     idToMessage.put(afterId, afterMessage);
+    history.add(new Change(afterId, false));
     return filterKeys(afterMessage, "id", "labelIds", "threadId");
   }
 
+  @Override
+  public int getMetadataBatchSize() {
+    return MAX_METADATA_BATCH_SIZE;
+  }
+
   private MessagePartHeader headerToMessagePartHeader(Header header) {
     MessagePartHeader messagePartHeader = new MessagePartHeader();
     messagePartHeader.setName(header.getName());
@@ -119,15 +192,19 @@ public class FakeGmailService implements GmailService {
   }
 
   @Override
-  public List<Message> search(String query) throws GmailServiceException {
-    List<Message> result = new ArrayList<>();
-    for (Message message : idToMessage.values()) {
+  public MessageIdPage search(String query, String pageToken) {
+    List<String> messageIds = new ArrayList<>();
+    for (Message message : new ArrayList<>(idToMessage.values())) {
       Map<String, String> headerMap = GmailService.getHeaderMap(message);
       if (headerMap.get("subject").toLowerCase().contains(query.toLowerCase())) {
-        result.add(filterKeys(message, "id", "internalDate", "labelIds", "payload", "sizeEstimate"));
+        messageIds.add(message.getId());
       }
     }
-    return result;
+    // Small pages, so that tests go through pagination.
+    int startIndex = pageToken == null ? 0 : Integer.parseInt(pageToken);
+    int endIndex = Math.min(messageIds.size(), startIndex + SEARCH_PAGE_SIZE);
+    String nextPageToken = endIndex < messageIds.size() ? String.valueOf(endIndex) : null;
+    return new MessageIdPage(new ArrayList<>(messageIds.subList(startIndex, endIndex)), nextPageToken);
   }
 
   /**
@@ -0,0 +1,42 @@
+package app.unattach.model.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuotaSchedulerTest {
+  @Test
+  void test_acquire_SHOULD_not_wait_WHEN_bucket_is_full() throws InterruptedException {
+    QuotaScheduler quotaScheduler = new QuotaScheduler(250);
+    long start = System.nanoTime();
+    quotaScheduler.acquire(QuotaCost.MESSAGES_GET, 50);
+    assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  void test_acquire_SHOULD_wait_for_refill_WHEN_bucket_is_empty() throws InterruptedException {
+    QuotaScheduler quotaScheduler = new QuotaScheduler(1000);
+    quotaScheduler.acquire(1000);
+    long start = System.nanoTime();
+    quotaScheduler.acquire(200);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+  }
+
+  @Test
+  void test_acquire_SHOULD_admit_and_go_into_debt_WHEN_cost_exceeds_capacity() throws InterruptedException {
+    QuotaScheduler quotaScheduler = new QuotaScheduler(250);
+    quotaScheduler.acquire(QuotaCost.MESSAGES_GET, 100);
+    assertTrue(quotaScheduler.getAvailableUnits() < 0);
+  }
+
+  @Test
+  void test_getAffordableCount_SHOULD_be_clamped() throws InterruptedException {
+    QuotaScheduler quotaScheduler = new QuotaScheduler(250);
+    assertEquals(100, quotaScheduler.getAffordableCount(QuotaCost.MESSAGES_GET, 1, TimeUnit.SECONDS, 100));
+    assertEquals(50, quotaScheduler.getAffordableCount(QuotaCost.MESSAGES_GET, 0, TimeUnit.SECONDS, 100));
+    quotaScheduler.acquire(QuotaCost.MESSAGES_GET, 200);
+    assertEquals(1, quotaScheduler.getAffordableCount(QuotaCost.MESSAGES_GET, 0, TimeUnit.SECONDS, 100));
+  }
+}
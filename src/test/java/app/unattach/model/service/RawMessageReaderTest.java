@@ -0,0 +1,45 @@
+package app.unattach.model.service;
+
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.gmail.model.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static org.apache.commons.codec.binary.Base64.encodeBase64URLSafeString;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RawMessageReaderTest {
+  @Test
+  void test_read_SHOULD_stream_raw_contents_and_parse_the_rest() throws IOException {
+    byte[] contents = new byte[100_000];
+    new Random(1337).nextBytes(contents);
+    String json = "{\"id\": \"1\", \"snippet\": \"a \\\"raw\\\": \\\"quote\\\" é\", \"labelIds\": [\"raw\", \"INBOX\"], " +
+        "\"raw\" : \"" + encodeBase64URLSafeString(contents) + "\", \"threadId\": \"2\"}";
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+
+    Message message = read(json, raw);
+    assertArrayEquals(contents, raw.toByteArray());
+    assertNull(message.getRaw());
+    assertEquals("1", message.getId());
+    assertEquals("2", message.getThreadId());
+    assertEquals("a \"raw\": \"quote\" é", message.getSnippet());
+    assertEquals(List.of("raw", "INBOX"), message.getLabelIds());
+  }
+
+  @Test
+  void test_read_SHOULD_fail_WHEN_raw_contents_are_missing() {
+    assertThrows(IOException.class, () -> read("{\"id\": \"1\", \"raw\": null}", new ByteArrayOutputStream()));
+    assertThrows(IOException.class, () -> read("{\"id\": \"1\", \"raw\": \"AAAA", new ByteArrayOutputStream()));
+  }
+
+  private static Message read(String json, ByteArrayOutputStream raw) throws IOException {
+    return RawMessageReader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), raw,
+        GsonFactory.getDefaultInstance());
+  }
+}
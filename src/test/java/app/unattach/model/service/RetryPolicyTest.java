@@ -0,0 +1,97 @@
+package app.unattach.model.service;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetryPolicyTest {
+  private final List<Long> sleeps = new ArrayList<>();
+
+  @Test
+  void test_execute_SHOULD_retry_WHEN_call_fails_transiently() throws IOException, InterruptedException {
+    RetryPolicy retryPolicy = createRetryPolicy(5, 10);
+    AtomicInteger attempts = new AtomicInteger();
+    String result = retryPolicy.execute(() -> {
+      if (attempts.incrementAndGet() < 3) {
+        throw createException(503, null);
+      }
+      return "ok";
+    });
+    assertEquals("ok", result);
+    assertEquals(3, attempts.get());
+    assertEquals(2, sleeps.size());
+  }
+
+  @Test
+  void test_execute_SHOULD_not_retry_WHEN_error_is_permanent() {
+    RetryPolicy retryPolicy = createRetryPolicy(5, 10);
+    AtomicInteger attempts = new AtomicInteger();
+    assertThrows(HttpResponseException.class, () -> retryPolicy.execute(() -> {
+      attempts.incrementAndGet();
+      throw createException(404, null);
+    }));
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  void test_execute_SHOULD_stop_retrying_WHEN_attempts_or_budget_are_spent() {
+    RetryPolicy retryPolicy = createRetryPolicy(3, 10);
+    AtomicInteger attempts = new AtomicInteger();
+    assertThrows(HttpResponseException.class, () -> retryPolicy.execute(() -> {
+      attempts.incrementAndGet();
+      throw createException(429, null);
+    }));
+    assertEquals(3, attempts.get());
+
+    RetryPolicy poorRetryPolicy = createRetryPolicy(5, 1);
+    attempts.set(0);
+    assertThrows(HttpResponseException.class, () -> poorRetryPolicy.execute(() -> {
+      attempts.incrementAndGet();
+      throw createException(429, null);
+    }));
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  void test_execute_SHOULD_not_retry_non_idempotent_call_WHEN_it_failed_without_response() {
+    RetryPolicy retryPolicy = createRetryPolicy(5, 10);
+    AtomicInteger attempts = new AtomicInteger();
+    assertThrows(SocketTimeoutException.class, () -> retryPolicy.execute(() -> {
+      attempts.incrementAndGet();
+      throw new SocketTimeoutException();
+    }, false));
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  void test_getBackoffMillis_SHOULD_grow_exponentially_and_honour_retry_after() {
+    RetryPolicy retryPolicy = createRetryPolicy(10, 10);
+    for (int i = 0; i < 100; ++i) {
+      assertTrue(retryPolicy.getBackoffMillis(1, 0) < 100);
+      assertTrue(retryPolicy.getBackoffMillis(3, 0) < 400);
+      assertTrue(retryPolicy.getBackoffMillis(10, 0) < 1000);
+      assertTrue(retryPolicy.getBackoffMillis(1, 5000) >= 5000);
+    }
+    assertEquals(2000, RetryPolicy.getRetryAfterMillis(new HttpHeaders().setRetryAfter("2")));
+    assertEquals(0, RetryPolicy.getRetryAfterMillis(new HttpHeaders()));
+  }
+
+  private RetryPolicy createRetryPolicy(int maxAttempts, double maxRetryBudget) {
+    return new RetryPolicy(maxAttempts, 100, 1000, 0.1, maxRetryBudget, new Random(1337), sleeps::add);
+  }
+
+  @SuppressWarnings("SameParameterValue")
+  private static HttpResponseException createException(int statusCode, String retryAfter) {
+    HttpHeaders headers = new HttpHeaders().setRetryAfter(retryAfter);
+    return new HttpResponseException.Builder(statusCode, null, headers).build();
+  }
+}